@@ -0,0 +1,147 @@
+package com.eoss.bot.line;
+
+import com.linecorp.bot.client.LineMessagingClient;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Wires the bot's components by hand, the way Spring does, around a stub {@link LineMessagingClient}
+ * and in-memory {@link Storage}. Beans are added in dependency order.
+ */
+public class BotFixture implements AutoCloseable {
+
+    public final EOSSBotProperties properties = new EOSSBotProperties();
+
+    public final Bot bot;
+
+    private final List<Object> beans = new ArrayList<>();
+
+    public BotFixture(LineMessagingClient lineMessagingClient, Storage storage) throws IOException {
+        this(lineMessagingClient, storage, Collections.emptyList());
+    }
+
+    /**
+     * @param overrides beans added in place of the component each one extends
+     */
+    public BotFixture(LineMessagingClient lineMessagingClient, Storage storage, List<?> overrides) throws IOException {
+
+        properties.setName(System.getProperty("eoss.bot.name", "jmh"));
+        properties.getJournal().setDirectory(Files.createTempDirectory("journal").toString());
+        properties.getMedia().setIndexDirectory(Files.createTempDirectory("media-index").toString());
+        properties.getSnapshot().setDirectory(Files.createTempDirectory("snapshot").toString());
+        properties.getSessions().setIndexDirectory(Files.createTempDirectory("sessions").toString());
+        properties.getOutbox().setDirectory(System.getProperty("eoss.bot.outbox.directory",
+                Files.createTempDirectory("outbox").toString()));
+        properties.getAudience().setDirectory(Files.createTempDirectory("audience").toString());
+        properties.getBroadcast().setDirectory(Files.createTempDirectory("broadcast").toString());
+        properties.getRateLimit().setEnabled(Boolean.getBoolean("eoss.bot.rateLimit.enabled"));
+
+        beans.add(properties);
+        beans.add(lineMessagingClient);
+        beans.add(storage);
+        beans.add(new Metrics());
+
+        for (Object bean : Arrays.asList(
+                new InMemorySharedState(),
+                new OutboundMessenger(),
+                new Outbox(),
+                new PushBatcher(),
+                new LocalSessionStore(),
+                new EventDispatcher(),
+                new EventJournal(),
+                new MediaIndex(),
+                new MediaPreviews(),
+                new MediaIngestor(),
+                new ProfileCache(),
+                new MessageRenderer(),
+                new SessionSnapshot(),
+                new Readiness(),
+                new RateLimiter(),
+                new ResponseCache(),
+                new Audience(),
+                new Broadcaster(),
+                new BrainContextFactory())) {
+            add(override(bean, overrides));
+        }
+
+        bot = add(new Bot());
+    }
+
+    public <T> T add(T bean) {
+        autowire(bean);
+        invoke(bean, PostConstruct.class);
+        beans.add(bean);
+        return bean;
+    }
+
+    public <T> T get(Class<T> type) {
+        for (Object bean : beans) {
+            if (type.isInstance(bean)) return type.cast(bean);
+        }
+        throw new IllegalStateException("No bean of " + type);
+    }
+
+    @Override
+    public void close() {
+        for (int i = beans.size() - 1; i >= 0; i--) {
+            invoke(beans.get(i), PreDestroy.class);
+        }
+    }
+
+    private static Object override(Object bean, List<?> overrides) {
+        for (Object override : overrides) {
+            if (bean.getClass().isInstance(override)) return override;
+        }
+        return bean;
+    }
+
+    private void autowire(Object bean) {
+        for (Class<?> type = bean.getClass(); type != Object.class; type = type.getSuperclass()) {
+            for (Field field : type.getDeclaredFields()) {
+                Autowired autowired = field.getAnnotation(Autowired.class);
+                if (autowired == null) continue;
+                Object dependency = find(field.getType());
+                if (dependency == null) {
+                    if (autowired.required()) throw new IllegalStateException("Nothing to inject into " + field);
+                    continue;
+                }
+                try {
+                    field.setAccessible(true);
+                    field.set(bean, dependency);
+                } catch (IllegalAccessException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+    }
+
+    private Object find(Class<?> type) {
+        for (Object bean : beans) {
+            if (type.isInstance(bean)) return bean;
+        }
+        return null;
+    }
+
+    private static void invoke(Object bean, Class<? extends java.lang.annotation.Annotation> annotation) {
+        for (Method method : bean.getClass().getMethods()) {
+            if (!method.isAnnotationPresent(annotation)) continue;
+            try {
+                method.invoke(bean);
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                throw new IllegalStateException("Cannot run " + method, e);
+            }
+        }
+    }
+
+}
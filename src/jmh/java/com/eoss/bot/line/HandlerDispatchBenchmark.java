@@ -0,0 +1,76 @@
+package com.eoss.bot.line;
+
+import com.linecorp.bot.model.event.MessageEvent;
+import com.linecorp.bot.model.event.message.TextMessageContent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A text message from webhook handler to reply, through the dispatcher, session store and brain.
+ * The brain is the real one: its knowledge base is loaded once, in setup, for the bot named by
+ * <code>-Deoss.bot.name</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class HandlerDispatchBenchmark {
+
+    @Param({"1", "1000"})
+    public int senders;
+
+    private final AtomicInteger next = new AtomicInteger();
+
+    private StubLineMessagingClient lineMessagingClient;
+
+    private BotFixture fixture;
+
+    private List<MessageEvent<TextMessageContent>> events;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setUp() throws Exception {
+
+        lineMessagingClient = new StubLineMessagingClient(0, new byte[0]);
+        fixture = new BotFixture(lineMessagingClient.client(), new MemoryStorage());
+        fixture.properties.getWebhook().setReplyTokenTtlSeconds(TimeUnit.DAYS.toSeconds(365));
+
+        events = new ArrayList<>(senders);
+        for (int i = 0; i < senders; i++) {
+            String body = WebhookEvents.text(String.format("U%032d", i), "สวัสดี");
+            MessageEvent<TextMessageContent> event = (MessageEvent<TextMessageContent>) WebhookEvents.parse(body).get(0);
+            fixture.bot.handleTextMessageEvent(event);
+            events.add(event);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        fixture.close();
+        lineMessagingClient.shutdown();
+    }
+
+    @Benchmark
+    public void handleTextMessageEvent() {
+        int i = (next.getAndIncrement() & Integer.MAX_VALUE) % events.size();
+        fixture.bot.handleTextMessageEvent(events.get(i));
+    }
+
+}
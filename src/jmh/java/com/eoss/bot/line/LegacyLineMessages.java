@@ -0,0 +1,206 @@
+package com.eoss.bot.line;
+
+import com.eoss.brain.MessageTemplate;
+import com.eoss.util.GAEWebStream;
+import com.linecorp.bot.model.action.Action;
+import com.linecorp.bot.model.action.MessageAction;
+import com.linecorp.bot.model.action.URIAction;
+import com.linecorp.bot.model.message.*;
+import com.linecorp.bot.model.message.imagemap.ImagemapArea;
+import com.linecorp.bot.model.message.imagemap.ImagemapBaseSize;
+import com.linecorp.bot.model.message.imagemap.URIImagemapAction;
+import com.linecorp.bot.model.message.template.ButtonsTemplate;
+import com.linecorp.bot.model.message.template.ConfirmTemplate;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <code>Application.toLineMessage</code> as it was before {@link MessageRenderer}, kept as the benchmark baseline.
+ */
+final class LegacyLineMessages {
+
+    private LegacyLineMessages() {
+    }
+
+    static Message toLineMessage(final String text) {
+
+        if (text.startsWith(MessageTemplate.STICKER)) {
+
+            String stickerString = text.replace(MessageTemplate.STICKER, "").replace("?", "");
+            String [] ids = stickerString.split(":", 2);
+            try {
+                int packageId = Integer.parseInt(ids[0]);
+                int stickerId = Integer.parseInt(ids[1]);
+                return new StickerMessage(Integer.toString(packageId), Integer.toString(stickerId));
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+
+        } else if (text.startsWith(MessageTemplate.IMAGE)) {
+
+            String url = text.replace(MessageTemplate.IMAGE, "");
+            return new ImageMessage(url, url);
+        } else if (text.startsWith(MessageTemplate.IMAGEMAP)) {
+
+            String url = text.replace(MessageTemplate.IMAGEMAP, "");
+            return new ImagemapMessage(url,
+                    "Download Here!",
+                    new ImagemapBaseSize(1040, 1040),
+                    Arrays.asList(
+                            new URIImagemapAction(
+                                    url,
+                                    new ImagemapArea(
+                                            0, 0, 520, 520
+                                    )
+                            )));
+
+        } else if (text.startsWith(MessageTemplate.AUDIO)) {
+
+            String url = text.replace(MessageTemplate.AUDIO, "");
+            return new AudioMessage(url, 60 * 1000);
+
+        } else if (text.startsWith(MessageTemplate.VIDEO)) {
+
+            String url = text.replace(MessageTemplate.VIDEO, "");
+            return new VideoMessage(url, GAEWebStream.URL_STORAGE_BIN +"preview.png");
+
+        } else if (text.startsWith(MessageTemplate.MODE)) {
+
+            String name = text.replace(MessageTemplate.MODE, "");
+            return new TemplateMessage(
+                    "โหมด",
+                    new ConfirmTemplate("ต้องการเข้าสู่โหมด " + name + " หรือไม่?",
+                            new MessageAction("Yes", MessageTemplate.MODE_HOOK + name),
+                            new MessageAction("No", "ไม่")));
+
+        } else if (text.startsWith("https://")) {
+
+            String [] templates = text.split(" ", 2);
+            String url = templates[0].trim();
+            String webName = url.replace("https://", "").replace("www.", "");
+            boolean isImageURL = url.endsWith("jpg") || url.endsWith("jpeg") || url.endsWith("png") || url.endsWith("JPG") || url.endsWith("PNG") || url.endsWith("JPEG");
+
+            String detail;
+            List<String> menuList = new ArrayList<>();
+            if (templates.length==1) {
+
+                if (isImageURL) {
+                    /*
+                    if (detail.length()>60)
+                        detail = detail.substring(0, 60-3) + "...";
+
+                    return new TemplateMessage(
+                            "ภาพ",
+                            new ButtonsTemplate(
+                                    url,
+                                    "ภาพ",
+                                    detail,
+                                    Arrays.asList(new URIAction("ดูภาพ", url))));
+                                    */
+                    return new ImageMessage(url, url);
+                }
+
+                detail = webName;
+                if (detail.length()>240)
+                    detail = detail.substring(0, 240-3) + "...";
+
+                return new TemplateMessage(
+                        "เวปไซท์",
+                        new ConfirmTemplate( detail,
+                                new URIAction("เข้าเวป", url),
+                                new MessageAction("ขอบคุณ", "ขอบคุณ")));
+            }
+
+            detail = templates[1];
+
+            if (isImageURL) {
+
+                String [] menus = templates[1].split("\n", 5);
+                detail = menus[0];
+
+                if (detail.length()>60)
+                    detail = detail.substring(0, 60-3) + "...";
+
+                if (menus.length>1) {
+                    String menuItem;
+                    for (int i=1;i<menus.length;i++) {
+                        if (menus[i].trim().isEmpty()) continue;
+                        menuItem = menus[i].trim();
+                        menuList.add(menuItem);
+                    }
+                }
+
+                String hostName;
+                URI uri;
+                try {
+                    uri = new URI(url);
+                    hostName = uri.getHost();
+                } catch (URISyntaxException e) {
+                    hostName = url;
+                }
+
+                List<Action> actionList = new ArrayList<>();
+
+                if (menuList.isEmpty()) {
+                    actionList.add(new MessageAction("ถัดไป", "ยังไง"));
+                } else {
+                    String[] items;
+                    String message, label;
+                    boolean isURL;
+                    for (String menuItem : menuList) {
+                        isURL = menuItem.startsWith("http://")||menuItem.startsWith("https://");
+                        if (isURL)
+                            menuItem = menuItem.replace("https://", "").replace("http://", "");
+                        items = menuItem.split(":", 2);
+                        if (items.length == 2) {
+                            message = items[0].trim();
+                            label = items[1].trim();
+                        } else {
+                            message = items[0].trim();
+                            label = message;
+                        }
+                        if (label.length() > 20)
+                            label = label.substring(0, 20 - 3) + "...";
+                        if (message.length() > 300)
+                            message = message.substring(0, 300);
+
+                        if (isURL) {
+                            actionList.add(new URIAction(label, "https://" + message));
+                            try {
+                                uri = new URI("https://" + message);
+                                hostName = uri.getHost();
+                            } catch (URISyntaxException e) {
+                                hostName = message;
+                            }
+                        } else {
+                            actionList.add(new MessageAction(label, message));
+                        }
+                    }
+                }
+
+                return new TemplateMessage(
+                        "โปรดเลือก",
+                        new ButtonsTemplate(
+                                url,
+                                hostName,
+                                detail,actionList));
+            }
+
+            if (detail.length()>240)
+                detail = detail.substring(0, 240-3) + "...";
+
+            return new TemplateMessage(
+                    "เวปไซท์",
+                    new ConfirmTemplate( detail,
+                            new URIAction("เข้าเวป", url),
+                            new MessageAction("ขอบคุณ", "ขอบคุณ")));
+        }
+
+        return new TextMessage(text);
+    }
+
+}
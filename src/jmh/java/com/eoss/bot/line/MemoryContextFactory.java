@@ -0,0 +1,16 @@
+package com.eoss.bot.line;
+
+import com.eoss.brain.net.Context;
+import com.eoss.brain.net.MemoryContext;
+
+/**
+ * {@link BrainContextFactory} with the brain kept in memory, in place of GAE.
+ */
+public class MemoryContextFactory extends BrainContextFactory {
+
+    @Override
+    public Context create(String name) {
+        return new MemoryContext(name);
+    }
+
+}
@@ -0,0 +1,48 @@
+package com.eoss.bot.line;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * {@link Storage} kept in memory, in place of GAE.
+ */
+public class MemoryStorage implements Storage {
+
+    private final Map<String, byte[]> blobs = new ConcurrentHashMap<>();
+
+    @Override
+    public String read(String name) {
+        byte[] blob = blobs.get(name);
+        return blob == null ? "" : new String(blob, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void write(String name, String text) {
+        blobs.put(name, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void write(String name, InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        blobs.put(name, out.toByteArray());
+    }
+
+    @Override
+    public String getURL(String name) {
+        return "https://storage.local/" + name;
+    }
+
+    public int size() {
+        return blobs.size();
+    }
+
+}
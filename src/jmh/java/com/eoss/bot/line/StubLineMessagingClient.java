@@ -0,0 +1,113 @@
+package com.eoss.bot.line;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.linecorp.bot.client.LineMessagingClient;
+import com.linecorp.bot.client.MessageContentResponse;
+import com.linecorp.bot.model.profile.UserProfileResponse;
+
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Answers every {@link LineMessagingClient} call locally after an injectable latency.
+ * Built as a dynamic proxy so it keeps up with whatever the SDK interface declares.
+ */
+public class StubLineMessagingClient implements InvocationHandler {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("stub-line"));
+
+    private final Map<String, LongAdder> calls = new ConcurrentHashMap<>();
+
+    private final byte[] content;
+
+    private volatile long latencyMillis;
+
+    public StubLineMessagingClient(long latencyMillis, byte[] content) {
+        this.latencyMillis = latencyMillis;
+        this.content = content;
+    }
+
+    public LineMessagingClient client() {
+        return (LineMessagingClient) Proxy.newProxyInstance(
+                LineMessagingClient.class.getClassLoader(), new Class<?>[]{LineMessagingClient.class}, this);
+    }
+
+    public void setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    public long calls(String method) {
+        LongAdder count = calls.get(method);
+        return count == null ? 0 : count.sum();
+    }
+
+    public void shutdown() {
+        timer.shutdown();
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) {
+
+        if (method.getDeclaringClass() == Object.class) {
+            switch (method.getName()) {
+                case "equals": return proxy == args[0];
+                case "hashCode": return System.identityHashCode(proxy);
+                default: return "StubLineMessagingClient";
+            }
+        }
+
+        calls.computeIfAbsent(method.getName(), name -> new LongAdder()).increment();
+
+        if (!CompletableFuture.class.isAssignableFrom(method.getReturnType())) return null;
+
+        return answer(method.getName(), args);
+    }
+
+    protected CompletableFuture<Object> answer(String method, Object[] args) {
+
+        Object value;
+        switch (method) {
+            case "getMessageContent":
+                value = MessageContentResponse.builder()
+                        .length(content.length)
+                        .stream(new ByteArrayInputStream(content))
+                        .mimeType("image/jpeg")
+                        .build();
+                break;
+            case "getProfile":
+                Map<String, Object> profile = new HashMap<>();
+                profile.put("userId", args[0]);
+                profile.put("displayName", "user-" + args[0]);
+                profile.put("pictureUrl", "https://profile.local/" + args[0]);
+                profile.put("statusMessage", "");
+                value = MAPPER.convertValue(profile, UserProfileResponse.class);
+                break;
+            default:
+                value = null;
+        }
+
+        return later(value);
+    }
+
+    protected CompletableFuture<Object> later(Object value) {
+
+        if (latencyMillis <= 0) return CompletableFuture.completedFuture(value);
+
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        timer.schedule(() -> future.complete(value), latencyMillis, TimeUnit.MILLISECONDS);
+        return future;
+    }
+
+}
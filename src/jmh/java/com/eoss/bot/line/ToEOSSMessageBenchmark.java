@@ -0,0 +1,65 @@
+package com.eoss.bot.line;
+
+import com.eoss.brain.MessageObject;
+import com.linecorp.bot.model.event.MessageEvent;
+import com.linecorp.bot.model.event.message.MessageContent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ToEOSSMessageBenchmark {
+
+    @Param({"text", "sticker", "image"})
+    public String kind;
+
+    private StubLineMessagingClient lineMessagingClient;
+
+    private BotFixture fixture;
+
+    private MessageEvent<? extends MessageContent> event;
+
+    @Setup
+    public void setUp() throws Exception {
+
+        lineMessagingClient = new StubLineMessagingClient(0, new byte[32 * 1024]);
+        fixture = new BotFixture(lineMessagingClient.client(), new MemoryStorage());
+
+        String body;
+        switch (kind) {
+            case "sticker": body = WebhookEvents.sticker("U0001", "1", "405"); break;
+            case "image": body = WebhookEvents.image("U0001"); break;
+            default: body = WebhookEvents.text("U0001", "สวัสดี");
+        }
+        event = (MessageEvent<? extends MessageContent>) WebhookEvents.parse(body).get(0);
+    }
+
+    @TearDown
+    public void tearDown() {
+        fixture.close();
+        lineMessagingClient.shutdown();
+    }
+
+    @Benchmark
+    public MessageObject toEOSSMessage() throws InterruptedException, ExecutionException {
+        return fixture.bot.toEOSSMessage(event);
+    }
+
+}
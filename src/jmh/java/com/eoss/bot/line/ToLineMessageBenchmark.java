@@ -0,0 +1,94 @@
+package com.eoss.bot.line;
+
+import com.eoss.brain.MessageTemplate;
+import com.linecorp.bot.model.message.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ToLineMessageBenchmark {
+
+    @Param({"sticker", "image", "imagemap", "audio", "video", "mode", "https", "https-image", "https-buttons", "text"})
+    public String kind;
+
+    private BotFixture fixture;
+
+    private MessageRenderer renderer;
+
+    private String response;
+
+    @Setup
+    public void setUp() throws Exception {
+        fixture = new BotFixture(new StubLineMessagingClient(0, new byte[0]).client(), new MemoryStorage());
+        renderer = fixture.get(MessageRenderer.class);
+        response = response(kind);
+    }
+
+    @TearDown
+    public void tearDown() {
+        fixture.close();
+    }
+
+    /**
+     * The <code>startsWith</code>/<code>replace</code> chain the renderer replaced, kept as the reference.
+     */
+    @Benchmark
+    public Message legacy() {
+        return LegacyLineMessages.toLineMessage(response);
+    }
+
+    /**
+     * A response seen for the first time.
+     */
+    @Benchmark
+    public Message compile() {
+        return MessageRenderer.compile(response);
+    }
+
+    /**
+     * A response the bot has sent before.
+     */
+    @Benchmark
+    public Message toLineMessage() {
+        return renderer.render(response);
+    }
+
+    /**
+     * A typical bot response of each kind {@link MessageRenderer} handles.
+     */
+    static String response(String kind) {
+        switch (kind) {
+            case "sticker": return MessageTemplate.STICKER + "1:405";
+            case "image": return MessageTemplate.IMAGE + "https://storage.local/2017-10-05-photo.jpg";
+            case "imagemap": return MessageTemplate.IMAGEMAP + "https://storage.local/catalog";
+            case "audio": return MessageTemplate.AUDIO + "https://storage.local/voice.mp4";
+            case "video": return MessageTemplate.VIDEO + "https://storage.local/clip.mp4";
+            case "mode": return MessageTemplate.MODE + "ขายของ";
+            case "https": return "https://www.eoss-th.com";
+            case "https-image": return "https://www.eoss-th.com/menu.jpg";
+            case "https-buttons": return "https://www.eoss-th.com/menu.jpg เมนูแนะนำวันนี้ ข้าวมันไก่ ก๋วยเตี๋ยว และเครื่องดื่ม\n"
+                    + "ราคา:ดูราคา\n"
+                    + "https://www.eoss-th.com/order:สั่งซื้อออนไลน์\n"
+                    + "ติดต่อเรา";
+            default: return "สวัสดีครับ ยินดีต้อนรับสู่ร้านของเรา";
+        }
+    }
+
+}
@@ -0,0 +1,70 @@
+package com.eoss.bot.line;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.linecorp.bot.model.event.CallbackRequest;
+import com.linecorp.bot.model.event.Event;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds and parses webhook bodies the way the LINE servlet parser does.
+ */
+public final class WebhookEvents {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper()
+            .findAndRegisterModules()
+            .configure(DeserializationFeature.READ_DATE_TIMESTAMPS_AS_NANOSECONDS, false)
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    private WebhookEvents() {
+    }
+
+    public static List<Event> parse(String body) throws IOException {
+        return MAPPER.readValue(body, CallbackRequest.class).getEvents();
+    }
+
+    public static String text(String userId, String text) throws IOException {
+        Map<String, Object> message = new HashMap<>();
+        message.put("type", "text");
+        message.put("text", text);
+        return callback(userId, message);
+    }
+
+    public static String sticker(String userId, String packageId, String stickerId) throws IOException {
+        Map<String, Object> message = new HashMap<>();
+        message.put("type", "sticker");
+        message.put("packageId", packageId);
+        message.put("stickerId", stickerId);
+        return callback(userId, message);
+    }
+
+    public static String image(String userId) throws IOException {
+        Map<String, Object> message = new HashMap<>();
+        message.put("type", "image");
+        return callback(userId, message);
+    }
+
+    private static String callback(String userId, Map<String, Object> message) throws IOException {
+
+        message.put("id", Long.toString(System.nanoTime()));
+
+        Map<String, Object> source = new HashMap<>();
+        source.put("type", "user");
+        source.put("userId", userId);
+
+        Map<String, Object> event = new HashMap<>();
+        event.put("type", "message");
+        event.put("replyToken", "reply-" + System.nanoTime());
+        event.put("timestamp", System.currentTimeMillis());
+        event.put("source", source);
+        event.put("message", message);
+
+        return MAPPER.writeValueAsString(Collections.singletonMap("events", Collections.singletonList(event)));
+    }
+
+}
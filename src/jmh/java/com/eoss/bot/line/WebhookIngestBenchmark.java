@@ -0,0 +1,102 @@
+package com.eoss.bot.line;
+
+import com.eoss.brain.MessageObject;
+import com.linecorp.bot.client.LineSignatureValidator;
+import com.linecorp.bot.model.event.Event;
+import com.linecorp.bot.model.event.MessageEvent;
+import com.linecorp.bot.model.event.message.MessageContent;
+import com.linecorp.bot.servlet.LineBotCallbackException;
+import com.linecorp.bot.servlet.LineBotCallbackRequestParser;
+import com.linecorp.bot.spring.boot.LineBotProperties;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One webhook body from signature to {@link MessageObject}, through the LINE servlet parser and
+ * event model and through {@link WebhookReader}. Allocation per operation is reported with
+ * <code>./gradlew jmh -PjmhInclude=WebhookIngestBenchmark -PjmhProfilers=gc</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class WebhookIngestBenchmark {
+
+    private static final String CHANNEL_SECRET = "benchmark-channel-secret";
+
+    @Param({"text", "sticker"})
+    public String kind;
+
+    private StubLineMessagingClient lineMessagingClient;
+
+    private BotFixture fixture;
+
+    private LineBotCallbackRequestParser parser;
+
+    private WebhookReader reader;
+
+    private byte[] body;
+
+    private String signature;
+
+    @Setup
+    public void setUp() throws Exception {
+
+        lineMessagingClient = new StubLineMessagingClient(0, new byte[0]);
+        fixture = new BotFixture(lineMessagingClient.client(), new MemoryStorage());
+
+        byte[] secret = CHANNEL_SECRET.getBytes(StandardCharsets.UTF_8);
+        parser = new LineBotCallbackRequestParser(new LineSignatureValidator(secret));
+
+        LineBotProperties lineBotProperties = new LineBotProperties();
+        lineBotProperties.setChannelSecret(CHANNEL_SECRET);
+        fixture.add(lineBotProperties);
+        reader = fixture.add(new WebhookReader());
+
+        String json = "sticker".equals(kind)
+                ? WebhookEvents.sticker("U0001", "1", "405")
+                : WebhookEvents.text("U0001", "สวัสดี");
+        body = json.getBytes(StandardCharsets.UTF_8);
+        signature = Base64.getEncoder().encodeToString(new LineSignatureValidator(secret).generateSignature(body));
+    }
+
+    @TearDown
+    public void tearDown() {
+        fixture.close();
+        lineMessagingClient.shutdown();
+    }
+
+    @Benchmark
+    public void lineModel(Blackhole blackhole) throws LineBotCallbackException, IOException, InterruptedException, ExecutionException {
+        for (Event event : parser.handle(signature, new String(body, StandardCharsets.UTF_8)).getEvents()) {
+            blackhole.consume(fixture.bot.toEOSSMessage((MessageEvent<? extends MessageContent>) event));
+        }
+    }
+
+    @Benchmark
+    public void streaming(Blackhole blackhole) throws LineBotCallbackException, IOException, InterruptedException, ExecutionException {
+        for (InboundEvent event : reader.read(signature, body)) {
+            blackhole.consume(fixture.bot.toEOSSMessage(event));
+        }
+    }
+
+}
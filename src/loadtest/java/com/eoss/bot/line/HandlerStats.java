@@ -0,0 +1,65 @@
+package com.eoss.bot.line;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency and allocation of one webhook handler during a replay.
+ * Allocation is what the handling threads allocated, the webhook thread and the dispatch worker both.
+ */
+public class HandlerStats {
+
+    private static final com.sun.management.ThreadMXBean THREADS = threads();
+
+    final String handler;
+
+    final Histogram latency = new Histogram(Histogram.MICROSECONDS);
+
+    final LongAdder failures = new LongAdder();
+
+    final LongAdder allocatedBytes = new LongAdder();
+
+    HandlerStats(String handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * @return bytes allocated so far by the current thread, or -1 when the JVM cannot tell
+     */
+    static long allocatedBytes() {
+        return THREADS == null ? -1 : THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    void allocatedSince(long startBytes) {
+        if (startBytes >= 0) allocatedBytes.add(allocatedBytes() - startBytes);
+    }
+
+    String report(double seconds) {
+        long count = latency.count();
+        return String.format("%-10s %9d %9.1f %9.2f %9d %9d %9d %9d %12.1f %10.2f",
+                handler,
+                count,
+                count / seconds,
+                count == 0 ? 0d : latency.sum() / 1000d / count,
+                latency.percentile(0.50) / 1000,
+                latency.percentile(0.90) / 1000,
+                latency.percentile(0.99) / 1000,
+                failures.sum(),
+                count == 0 ? 0d : allocatedBytes.sum() / 1024d / count,
+                allocatedBytes.sum() / 1048576d / seconds);
+    }
+
+    static String header() {
+        return String.format("%-10s %9s %9s %9s %9s %9s %9s %9s %12s %10s",
+                "handler", "events", "events/s", "mean ms", "p50 ms", "p90 ms", "p99 ms", "failed", "KB/event", "MB/s");
+    }
+
+    private static com.sun.management.ThreadMXBean threads() {
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) return null;
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadAllocatedMemorySupported()) return null;
+        threads.setThreadAllocatedMemoryEnabled(true);
+        return threads;
+    }
+
+}
@@ -0,0 +1,28 @@
+package com.eoss.bot.line;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * {@link EventDispatcher} that charges what a task allocates on its worker to the handler replaying it.
+ */
+public class MeteredEventDispatcher extends EventDispatcher {
+
+    static final ThreadLocal<HandlerStats> HANDLER = new ThreadLocal<>();
+
+    @Override
+    public CompletableFuture<Void> dispatch(String partitionKey, long deadline, Runnable runnable) {
+
+        HandlerStats stats = HANDLER.get();
+        if (stats == null) return super.dispatch(partitionKey, deadline, runnable);
+
+        return super.dispatch(partitionKey, deadline, () -> {
+            long start = HandlerStats.allocatedBytes();
+            try {
+                runnable.run();
+            } finally {
+                stats.allocatedSince(start);
+            }
+        });
+    }
+
+}
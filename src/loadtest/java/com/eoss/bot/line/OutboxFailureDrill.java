@@ -0,0 +1,132 @@
+package com.eoss.bot.line;
+
+import com.linecorp.bot.model.PushMessage;
+import com.linecorp.bot.model.message.Message;
+import com.linecorp.bot.model.message.TextMessage;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drives the {@link Outbox} through a flaky LINE and a restart, then checks no push was lost and
+ * every recipient got theirs in order.
+ * <p>
+ * <code>loadtest.pushes</code> numbered pushes to 50 recipients go through {@link PushBatcher} while
+ * <code>loadtest.failureRate</code> of the push calls fail, then LINE goes down completely and the bot
+ * is stopped with pushes still pending. A second bot on the same outbox directory has to deliver
+ * every one of them, after the ones delivered before and before the ones it is handed itself.
+ */
+public class OutboxFailureDrill {
+
+    public static void main(String[] args) throws Exception {
+
+        int pushes = Integer.getInteger("loadtest.pushes", 2000);
+        double failureRate = Double.parseDouble(System.getProperty("loadtest.failureRate", "0.3"));
+        System.setProperty("eoss.bot.outbox.directory", Files.createTempDirectory("outbox-drill").toString());
+
+        Map<String, AtomicInteger> delivered = new ConcurrentHashMap<>();
+        Map<String, List<Integer>> received = new ConcurrentHashMap<>();
+
+        FlakyLineMessagingClient first = new FlakyLineMessagingClient(delivered, received, failureRate);
+        try (BotFixture fixture = new BotFixture(first.client(), new MemoryStorage())) {
+            fixture.properties.getOutbox().setRetryMillis(10);
+            fixture.properties.getOutbox().setMaxRetryMillis(100);
+
+            Outbox outbox = fixture.get(Outbox.class);
+            PushBatcher pushBatcher = fixture.get(PushBatcher.class);
+            for (int i = 0; i < pushes; i++) {
+                pushBatcher.push("U" + (i % 50), Collections.singletonList(new TextMessage("push-" + i)));
+                if (i == pushes / 2) first.failureRate = 1;
+            }
+            System.out.printf("stopping with %d of %d pushes pending%n", outbox.pending(), pushes);
+        } finally {
+            first.shutdown();
+        }
+
+        FlakyLineMessagingClient second = new FlakyLineMessagingClient(delivered, received, failureRate);
+        try (BotFixture fixture = new BotFixture(second.client(), new MemoryStorage())) {
+            fixture.properties.getOutbox().setRetryMillis(10);
+            fixture.properties.getOutbox().setMaxRetryMillis(100);
+
+            Outbox outbox = fixture.get(Outbox.class);
+            long deadline = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(1);
+            while (outbox.pending() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            System.out.printf("restarted, %d pushes left pending%n", outbox.pending());
+        } finally {
+            second.shutdown();
+        }
+
+        int lost = 0, duplicated = 0, outOfOrder = 0;
+        for (int i = 0; i < pushes; i++) {
+            AtomicInteger count = delivered.get("push-" + i);
+            if (count == null) lost++;
+            else if (count.get() > 1) duplicated++;
+        }
+        for (List<Integer> numbers : received.values()) {
+            for (int i = 1; i < numbers.size(); i++) {
+                if (numbers.get(i) < numbers.get(i - 1)) outOfOrder++;
+            }
+        }
+        System.out.printf("%d pushes, %d lost, %d delivered more than once, %d out of order, %d failed calls injected%n",
+                pushes, lost, duplicated, outOfOrder, first.failed.get() + second.failed.get());
+        if (lost > 0 || outOfOrder > 0) System.exit(1);
+    }
+
+    /**
+     * Fails push calls at random, the way a connection reset would, and records the texts of those
+     * accepted, and each recipient's push numbers the first time they arrive.
+     */
+    static class FlakyLineMessagingClient extends StubLineMessagingClient {
+
+        final Map<String, AtomicInteger> delivered;
+
+        final Map<String, List<Integer>> received;
+
+        final AtomicInteger failed = new AtomicInteger();
+
+        volatile double failureRate;
+
+        FlakyLineMessagingClient(Map<String, AtomicInteger> delivered, Map<String, List<Integer>> received, double failureRate) {
+            super(5, new byte[0]);
+            this.delivered = delivered;
+            this.received = received;
+            this.failureRate = failureRate;
+        }
+
+        @Override
+        protected CompletableFuture<Object> answer(String method, Object[] args) {
+
+            if (!"pushMessage".equals(method)) return super.answer(method, args);
+
+            if (ThreadLocalRandom.current().nextDouble() < failureRate) {
+                failed.incrementAndGet();
+                CompletableFuture<Object> failure = new CompletableFuture<>();
+                failure.completeExceptionally(new IOException("Injected failure"));
+                return failure;
+            }
+
+            PushMessage pushMessage = (PushMessage) args[0];
+            List<Integer> numbers = received.computeIfAbsent(pushMessage.getTo(), to -> Collections.synchronizedList(new ArrayList<>()));
+            for (Message message : pushMessage.getMessages()) {
+                if (!(message instanceof TextMessage)) continue;
+                String text = ((TextMessage) message).getText();
+                if (delivered.computeIfAbsent(text, key -> new AtomicInteger()).incrementAndGet() == 1) {
+                    numbers.add(Integer.parseInt(text.substring("push-".length())));
+                }
+            }
+            return later(null);
+        }
+    }
+
+}
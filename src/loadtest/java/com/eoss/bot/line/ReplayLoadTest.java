@@ -0,0 +1,205 @@
+package com.eoss.bot.line;
+
+import com.linecorp.bot.model.event.Event;
+import com.linecorp.bot.model.event.MessageEvent;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays recorded webhook traffic through the bot's handlers and reports throughput, latency
+ * percentiles and allocation per handler.
+ * <p>
+ * Every line of <code>-Dloadtest.events</code> is a webhook body, or a single event of one. Events are
+ * handed to {@link Bot#handle(Event)} by <code>loadtest.concurrency</code> threads, paced to
+ * <code>loadtest.rate</code> events per second (0 for as fast as they go), <code>loadtest.loops</code>
+ * times over after <code>loadtest.warmupLoops</code> unmeasured passes. LINE is a stub answering after
+ * <code>loadtest.latencyMillis</code>, and storage and the brain context are in memory.
+ * <p>
+ * With a rate set, latency runs from when an event was due rather than when it was sent, so a bot
+ * falling behind shows up in the percentiles instead of slowing the replay down.
+ */
+public class ReplayLoadTest {
+
+    private final List<Event> events;
+
+    private final int concurrency;
+
+    private final double rate;
+
+    private final Map<String, HandlerStats> stats = new ConcurrentHashMap<>();
+
+    private final BotFixture fixture;
+
+    private final StubLineMessagingClient lineMessagingClient;
+
+    ReplayLoadTest(List<Event> events, int concurrency, double rate, long latencyMillis) throws IOException {
+
+        this.events = events;
+        this.concurrency = concurrency;
+        this.rate = rate;
+
+        lineMessagingClient = new StubLineMessagingClient(latencyMillis, new byte[1024]);
+        fixture = new BotFixture(lineMessagingClient.client(), new MemoryStorage(),
+                Arrays.asList(new MeteredEventDispatcher(), new MemoryContextFactory()));
+        fixture.properties.getWebhook().setAsync(false);
+        fixture.properties.getWebhook().setReplyTokenTtlSeconds(TimeUnit.DAYS.toSeconds(365 * 10));
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        List<Event> events = read(System.getProperty("loadtest.events"));
+        int concurrency = Integer.getInteger("loadtest.concurrency", 8);
+        double rate = Double.parseDouble(System.getProperty("loadtest.rate", "0"));
+        long latencyMillis = Long.getLong("loadtest.latencyMillis", 50);
+        int warmupLoops = Integer.getInteger("loadtest.warmupLoops", 1);
+        int loops = Integer.getInteger("loadtest.loops", 10);
+
+        System.out.printf("%d events, %d threads, %s events/s, LINE answering in %d ms%n",
+                events.size(), concurrency, rate > 0 ? rate : "unlimited", latencyMillis);
+
+        ReplayLoadTest loadTest = new ReplayLoadTest(events, concurrency, rate, latencyMillis);
+        try {
+            loadTest.replay(warmupLoops);
+            loadTest.stats.clear();
+
+            long gcCount = gcCount(), gcMillis = gcMillis();
+            long start = System.nanoTime();
+            loadTest.replay(loops);
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            loadTest.report(seconds, gcCount() - gcCount, gcMillis() - gcMillis);
+        } finally {
+            loadTest.close();
+        }
+    }
+
+    void replay(int loops) throws InterruptedException {
+
+        long total = (long) events.size() * loops;
+        AtomicLong next = new AtomicLong();
+        long start = System.nanoTime();
+
+        ExecutorService threads = Executors.newFixedThreadPool(concurrency, new NamedThreadFactory("loadtest"));
+        for (int i = 0; i < concurrency; i++) {
+            threads.execute(() -> {
+                for (long n = next.getAndIncrement(); n < total; n = next.getAndIncrement()) {
+                    long due = rate > 0 ? start + (long) (n * 1e9 / rate) : System.nanoTime();
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) LockSupport.parkNanos(wait);
+                    send(events.get((int) (n % events.size())), due);
+                }
+            });
+        }
+        threads.shutdown();
+        threads.awaitTermination(1, TimeUnit.DAYS);
+    }
+
+    private void send(Event event, long due) {
+
+        HandlerStats handler = stats.computeIfAbsent(handler(event), HandlerStats::new);
+        MeteredEventDispatcher.HANDLER.set(handler);
+
+        long allocated = HandlerStats.allocatedBytes();
+        try {
+            fixture.bot.handle(event);
+        } catch (RuntimeException e) {
+            handler.failures.increment();
+        } finally {
+            handler.latency.recordMicrosSince(due);
+            handler.allocatedSince(allocated);
+            MeteredEventDispatcher.HANDLER.remove();
+        }
+    }
+
+    void report(double seconds, long gcCount, long gcMillis) {
+
+        HandlerStats all = new HandlerStats("all");
+        long count = 0, sum = 0;
+
+        System.out.println();
+        System.out.println(HandlerStats.header());
+        for (HandlerStats handler : new TreeMap<>(stats).values()) {
+            System.out.println(handler.report(seconds));
+            all.failures.add(handler.failures.sum());
+            all.allocatedBytes.add(handler.allocatedBytes.sum());
+            count += handler.latency.count();
+            sum += handler.latency.sum();
+        }
+
+        System.out.printf("%ntotal %d events in %.1f s, %.1f events/s, mean %.2f ms, %d failed, %.2f MB/s allocated%n",
+                count, seconds, count / seconds, count == 0 ? 0d : sum / 1000d / count,
+                all.failures.sum(), all.allocatedBytes.sum() / 1048576d / seconds);
+        System.out.printf("gc %d collections, %d ms%n", gcCount, gcMillis);
+        System.out.printf("LINE reply %d, push %d, multicast %d%n", lineMessagingClient.calls("replyMessage"),
+                lineMessagingClient.calls("pushMessage"), lineMessagingClient.calls("multicast"));
+
+        if (Boolean.getBoolean("loadtest.metrics")) {
+            System.out.println();
+            System.out.print(fixture.get(Metrics.class).prometheus());
+        }
+    }
+
+    void close() {
+        fixture.close();
+        lineMessagingClient.shutdown();
+    }
+
+    /**
+     * The handler an event is routed to: the message type for messages, the event type otherwise.
+     */
+    static String handler(Event event) {
+        String type = event instanceof MessageEvent
+                ? ((MessageEvent<?>) event).getMessage().getClass().getSimpleName().replace("MessageContent", "")
+                : event.getClass().getSimpleName().replace("Event", "");
+        return type.isEmpty() ? "other" : type.toLowerCase();
+    }
+
+    static List<Event> read(String path) throws IOException {
+
+        List<Event> events = new ArrayList<>();
+        try (InputStream in = path != null ? Files.newInputStream(Paths.get(path))
+                : ReplayLoadTest.class.getResourceAsStream("/events.jsonl");
+             BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                line = line.trim();
+                if (line.isEmpty()) continue;
+                events.addAll(WebhookEvents.parse(line.contains("\"events\"") ? line : "{\"events\":[" + line + "]}"));
+            }
+        }
+        if (events.isEmpty()) throw new IllegalArgumentException("No events to replay in " + (path != null ? path : "events.jsonl"));
+        return events;
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) count += Math.max(0, gc.getCollectionCount());
+        return count;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) millis += Math.max(0, gc.getCollectionTime());
+        return millis;
+    }
+
+}
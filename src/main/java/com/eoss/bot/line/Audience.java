@@ -0,0 +1,203 @@
+package com.eoss.bot.line;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Everyone a broadcast reaches: users following the bot, and the groups and rooms it is in.
+ * <p>
+ * Kept in memory as sets and in a local change log, <code>+</code> or <code>-</code> then the kind and
+ * the id on each line, which is rewritten without the removed ids at startup. The first start seeds
+ * it from the follow, unfollow, join and leave journals in {@link Storage}. Changes seen by one node
+ * are sent to the others through {@link SharedState}.
+ */
+@Component
+public class Audience {
+
+    public enum Kind { USER, GROUP, ROOM }
+
+    private static final String CHANNEL = "audience";
+
+    @Autowired
+    private EOSSBotProperties eossBotProperties;
+
+    @Autowired
+    private Storage storage;
+
+    @Autowired
+    private SharedState sharedState;
+
+    @Autowired
+    private Metrics metrics;
+
+    private final Map<Kind, Set<String>> members = new HashMap<>();
+
+    private Path file;
+
+    /**
+     * Guarded by the instance lock.
+     */
+    private BufferedWriter log;
+
+    @PostConstruct
+    public void init() throws IOException {
+
+        for (Kind kind : Kind.values()) {
+            members.put(kind, ConcurrentHashMap.newKeySet());
+        }
+
+        Path directory = Paths.get(eossBotProperties.getAudience().getDirectory());
+        Files.createDirectories(directory);
+        file = directory.resolve(eossBotProperties.getName() + ".audience");
+
+        if (Files.exists(file)) {
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                apply(line);
+            }
+        } else {
+            seed();
+        }
+        rewrite();
+
+        metrics.gauge("eoss_audience_users", () -> members.get(Kind.USER).size());
+        metrics.gauge("eoss_audience_groups", () -> members.get(Kind.GROUP).size());
+        metrics.gauge("eoss_audience_rooms", () -> members.get(Kind.ROOM).size());
+
+        sharedState.subscribe(CHANNEL, this::applyAndLog);
+    }
+
+    @PreDestroy
+    public synchronized void shutdown() throws IOException {
+        if (log != null) log.close();
+        log = null;
+    }
+
+    public void add(Kind kind, String id) {
+        change("+", kind, id);
+    }
+
+    public void remove(Kind kind, String id) {
+        change("-", kind, id);
+    }
+
+    /**
+     * @return a sorted copy, so the same audience always comes out in the same order
+     */
+    public List<String> members(Kind kind) {
+        List<String> ids = new ArrayList<>(members.get(kind));
+        Collections.sort(ids);
+        return ids;
+    }
+
+    public int size(Kind kind) {
+        return members.get(kind).size();
+    }
+
+    /**
+     * The kind of a group or room id, by the first letter LINE gives them.
+     */
+    public static Kind kindOf(String id) {
+        if (id.startsWith("C")) return Kind.GROUP;
+        if (id.startsWith("R")) return Kind.ROOM;
+        return Kind.USER;
+    }
+
+    private void change(String op, Kind kind, String id) {
+        if (id == null || id.isEmpty()) return;
+        String line = op + "\t" + kind + "\t" + id;
+        if (applyAndLog(line)) {
+            sharedState.publish(CHANNEL, line);
+        }
+    }
+
+    private synchronized boolean applyAndLog(String line) {
+        if (log == null || !apply(line)) return false;
+        try {
+            log.write(line);
+            log.newLine();
+            log.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return true;
+    }
+
+    /**
+     * @return true when the line changed the audience
+     */
+    private boolean apply(String line) {
+        String[] fields = line.split("\t");
+        if (fields.length != 3) return false;
+        Kind kind;
+        try {
+            kind = Kind.valueOf(fields[1]);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        Set<String> ids = members.get(kind);
+        return "+".equals(fields[0]) ? ids.add(fields[2]) : "-".equals(fields[0]) && ids.remove(fields[2]);
+    }
+
+    /**
+     * The journals only keep the order of records within each log, so an id is in the audience
+     * when it was followed or joined more often than it was unfollowed or left.
+     */
+    private void seed() {
+        String name = eossBotProperties.getName();
+        Map<String, Integer> users = new HashMap<>();
+        count(users, storage.read(name + "." + EventJournal.FOLLOW + ".txt"), 1);
+        count(users, storage.read(name + "." + EventJournal.UNFOLLOW + ".txt"), -1);
+        Map<String, Integer> chats = new HashMap<>();
+        count(chats, storage.read(name + "." + EventJournal.JOIN + ".txt"), 1);
+        count(chats, storage.read(name + "." + EventJournal.LEAVE + ".txt"), -1);
+
+        users.forEach((id, count) -> {
+            if (count > 0) members.get(Kind.USER).add(id);
+        });
+        chats.forEach((id, count) -> {
+            if (count > 0) members.get(kindOf(id)).add(id);
+        });
+    }
+
+    private static void count(Map<String, Integer> counts, String records, int delta) {
+        if (records == null) return;
+        for (String record : records.split("\n")) {
+            String[] fields = record.trim().split("\t");
+            if (fields.length < 2 || fields[1].isEmpty()) continue;
+            counts.merge(fields[1], delta, Integer::sum);
+        }
+    }
+
+    private synchronized void rewrite() throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            for (Kind kind : Kind.values()) {
+                for (String id : members(kind)) {
+                    out.write("+\t" + kind + "\t" + id);
+                    out.newLine();
+                }
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+    }
+
+}
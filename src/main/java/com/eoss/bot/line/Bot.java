@@ -0,0 +1,769 @@
+/*
+ * Copyright 2016 LINE Corporation
+ *
+ * LINE Corporation licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.eoss.bot.line;
+
+import com.eoss.brain.*;
+import com.eoss.brain.command.line.BizWakeupCommandNode;
+import com.eoss.brain.command.line.WakeupCommandNode;
+import com.eoss.brain.net.Context;
+import com.linecorp.bot.client.LineMessagingClient;
+import com.linecorp.bot.client.exception.BadRequestException;
+import com.linecorp.bot.model.ReplyMessage;
+import com.linecorp.bot.model.error.ErrorResponse;
+import com.linecorp.bot.model.event.*;
+import com.linecorp.bot.model.event.Event;
+import com.linecorp.bot.model.event.message.*;
+import com.linecorp.bot.model.event.source.GroupSource;
+import com.linecorp.bot.model.event.source.RoomSource;
+import com.linecorp.bot.model.message.*;
+import com.linecorp.bot.model.profile.UserProfileResponse;
+import com.linecorp.bot.model.response.BotApiResponse;
+import com.linecorp.bot.spring.boot.annotation.EventMapping;
+import com.linecorp.bot.spring.boot.annotation.LineMessageHandler;
+import lombok.NonNull;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * One bot: its brain context, admins and the handlers for its webhook events.
+ * <p>
+ * The bot configured under <code>eoss.bot</code> is a bean of the application and gets its events
+ * through {@link EventMapping}, or through {@link #handle(InboundEvent)} from {@link WebhookController}.
+ * Tenants get their own instance through {@link TenantRegistry} and their events through {@link #handle(Event)}.
+ */
+@Component
+@LineMessageHandler
+public class Bot {
+
+    private static final String ADMINS = "admins";
+
+    /**
+     * The message of the 400 LINE answers a reply with, once its token is used or has expired.
+     */
+    private static final String INVALID_REPLY_TOKEN = "Invalid reply token";
+
+    private static final List<String> EVENT_TYPES = Arrays.asList(
+            InboundEvent.TEXT, InboundEvent.STICKER, InboundEvent.IMAGE, InboundEvent.AUDIO, InboundEvent.VIDEO,
+            "follow", "unfollow", "join", "leave", "other");
+
+    @Autowired
+    private EOSSBotProperties eossBotProperties;
+
+    @Autowired
+    private LineMessagingClient lineMessagingClient;
+
+    @Autowired
+    private SessionStore sessionStore;
+
+    @Autowired
+    private EventDispatcher eventDispatcher;
+
+    @Autowired
+    private OutboundMessenger outboundMessenger;
+
+    @Autowired
+    private PushBatcher pushBatcher;
+
+    @Autowired
+    private EventJournal eventJournal;
+
+    @Autowired
+    private MediaIngestor mediaIngestor;
+
+    @Autowired
+    private ProfileCache profileCache;
+
+    @Autowired
+    private MessageRenderer messageRenderer;
+
+    @Autowired
+    private Metrics metrics;
+
+    @Autowired
+    private SessionSnapshot sessionSnapshot;
+
+    @Autowired
+    private Storage storage;
+
+    @Autowired
+    private Readiness readiness;
+
+    @Autowired
+    private SharedState sharedState;
+
+    @Autowired
+    private RateLimiter rateLimiter;
+
+    @Autowired
+    private ResponseCache responseCache;
+
+    @Autowired
+    private Audience audience;
+
+    @Autowired
+    private BrainContextFactory brainContextFactory;
+
+    private Histogram sessionStage, wakeupStage, toEOSSMessageStage, parseStage, toLineMessageStage, replyStage, pushStage;
+
+    private LongAdder replied, pushed, replyTokensExpired, replyTokensRejected;
+
+    /**
+     * The <code>eoss_events_total</code> counter of each of {@link #EVENT_TYPES}, only read after {@link #init()}.
+     */
+    private final Map<String, LongAdder> eventCounts = new HashMap<>();
+
+    /**
+     * Message events handed to the dispatcher and not done yet.
+     */
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private Context context;
+
+    private ScheduledExecutorService startupExecutor;
+
+    final List<String> adminIdList = new CopyOnWriteArrayList<>();
+
+    @PostConstruct
+    public void init() {
+        sessionStage = stage("session");
+        wakeupStage = stage("wakeup");
+        toEOSSMessageStage = stage("toEOSSMessage");
+        parseStage = stage("parse");
+        toLineMessageStage = stage("toLineMessage");
+        replyStage = stage("reply");
+        pushStage = stage("push");
+
+        replied = metrics.counter("eoss_responses_total{via=\"reply\"}");
+        pushed = metrics.counter("eoss_responses_total{via=\"push\"}");
+        replyTokensExpired = metrics.counter("eoss_reply_tokens_expired_total");
+        replyTokensRejected = metrics.counter("eoss_reply_tokens_rejected_total");
+        for (String type : EVENT_TYPES) {
+            eventCounts.put(type, metrics.counter("eoss_events_total{type=\"" + type + "\"}"));
+        }
+        metrics.gauge("eoss_responses_push_ratio", () -> {
+            long replies = replied.sum(), pushes = pushed.sum();
+            return replies + pushes == 0 ? 0d : (double) pushes / (replies + pushes);
+        });
+
+        startUp();
+
+        readiness.whenReady().thenRun(() -> warm(sessionSnapshot.recent(eossBotProperties.getSnapshot().getWarmSessions())));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        startupExecutor.shutdownNow();
+    }
+
+    /**
+     * Reads the admin list and wakes the brain context in parallel, holding back traffic until both
+     * are done or <code>startup.timeoutMillis</code> has passed. A part that fails is tried again with
+     * backoff, and the bot stays not ready, with the failure on <code>/ready</code>, until both succeeded.
+     */
+    private void startUp() {
+
+        long start = System.currentTimeMillis();
+        metrics.gauge("eoss_ready", () -> readiness.isReady() ? 1 : 0);
+
+        adminIdList.add("Uee73cf96d1dbe69a260d46fc03393cfd");
+        sharedState.subscribe(ADMINS, this::addAdmin);
+        context = brainContextFactory.create(eossBotProperties.getName())
+                .admin(adminIdList)
+                .callback(this::callback)
+                .domain(eossBotProperties.getDomain());
+
+        startupExecutor = Executors.newScheduledThreadPool(2, new NamedThreadFactory("startup"));
+
+        CompletableFuture<Void> admins = new CompletableFuture<>();
+        startUp("admins", this::loadAdminIdList, admins, start, 0);
+
+        CompletableFuture<Void> brain = new CompletableFuture<>();
+        startUp("context", this::newSession, brain, start, 0);
+
+        CompletableFuture.allOf(admins, brain).thenRun(() -> {
+            startupTime("ready", start);
+            readiness.markReady();
+            startupExecutor.shutdown();
+        });
+
+        try {
+            readiness.whenReady().get(eossBotProperties.getStartup().getTimeoutMillis(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            metrics.counter("eoss_startup_timeouts_total").increment();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void startUp(String phase, Runnable task, CompletableFuture<Void> done, long start, int attempt) {
+        startupExecutor.execute(() -> {
+            try {
+                task.run();
+                startupTime(phase, start);
+                done.complete(null);
+            } catch (RuntimeException e) {
+                metrics.counter("eoss_startup_failures_total{phase=\"" + phase + "\"}").increment();
+                readiness.markFailed(phase, e);
+                e.printStackTrace();
+                EOSSBotProperties.Startup properties = eossBotProperties.getStartup();
+                long backoff = Math.min(properties.getRetryMillis() << Math.min(attempt, 16), properties.getMaxRetryMillis());
+                startupExecutor.schedule(() -> startUp(phase, task, done, start, attempt + 1), backoff, TimeUnit.MILLISECONDS);
+            }
+        });
+    }
+
+    private void startupTime(String phase, long start) {
+        long millis = System.currentTimeMillis() - start;
+        metrics.gauge("eoss_startup_milliseconds{phase=\"" + phase + "\"}", () -> millis);
+    }
+
+    /**
+     * Rebuilds sessions from before a restart on the dispatch workers, each in its sender's partition.
+     */
+    private void warm(List<SessionRecord> records) {
+        for (SessionRecord record : records) {
+            eventDispatcher
+                    .dispatch(record.sessionId, () -> sessionStore.get(record.sessionId, (id, spilled) -> newSession()))
+                    .whenComplete(Bot::logFailure);
+        }
+    }
+
+    private Histogram stage(String name) {
+        return metrics.histogram("eoss_handler_stage_microseconds{stage=\"" + name + "\"}", Histogram.MICROSECONDS);
+    }
+
+    private void count(String eventType) {
+        eventCounts.get(eventType).increment();
+    }
+
+    private void loadAdminIdList() {
+
+        sharedState.members(ADMINS).forEach(this::addAdmin);
+
+        String userIds = storage.read(eossBotProperties.getName() + ".admin.txt");
+        if (userIds == null || userIds.trim().isEmpty()) return;
+
+        for (String line : userIds.trim().split(System.lineSeparator())) {
+            String userId = line.trim();
+            if (userId.isEmpty()) continue;
+            addAdmin(userId);
+        }
+    }
+
+    private void addAdmin(String userId) {
+        if (!adminIdList.contains(userId)) {
+            adminIdList.add(userId);
+        }
+    }
+
+    private Context getContext() {
+        return context;
+    }
+
+    private Session getContext(final InboundEvent event, final List<Message> greetings) {
+
+        String sessionId = event.senderId;
+        long start = System.nanoTime();
+
+        Session session = sessionStore.get(sessionId, (id, spilled) -> {
+
+            if (spilled==null) {
+                greetings.add(toLineMessage(MessageTemplate.STICKER + "1:405"));
+            }
+            return newSession();
+        });
+
+        sessionStage.recordMicrosSince(start);
+
+        profileCache.prefetch(Collections.singletonList(event.userId));
+
+        return session;
+    }
+
+    private Session newSession() {
+        long start = System.nanoTime();
+        Session session = new Session(getContext());
+        new BizWakeupCommandNode(session).execute(null);
+        wakeupStage.recordMicrosSince(start);
+        return session;
+    }
+
+    MessageObject toEOSSMessage(MessageEvent<? extends MessageContent> event) throws InterruptedException, ExecutionException {
+        return toEOSSMessage(InboundEvent.of(event, messageType(event.getMessage())));
+    }
+
+    MessageObject toEOSSMessage(InboundEvent event) throws InterruptedException, ExecutionException {
+
+        Map<String, Object> attributes = new HashMap<>(8);
+        attributes.put("userId", event.userId);
+        attributes.put("senderId", event.senderId);
+        if (event.event != null) attributes.put("event", event.event);
+
+        String text = "";
+        long mediaAwaitMillis = eossBotProperties.getMedia().getAwaitMillis();
+
+        switch (event.messageType) {
+
+            case InboundEvent.TEXT:
+                text = event.text;
+                break;
+
+            case InboundEvent.STICKER:
+                text = MessageTemplate.STICKER + event.packageId + ":" + event.stickerId;
+                break;
+
+            case InboundEvent.IMAGE:
+                text = MessageTemplate.IMAGE + mediaIngestor.ingest(event.messageId, "jpg", MediaPreviews.Kind.IMAGE).await(mediaAwaitMillis);
+                break;
+
+            case InboundEvent.AUDIO:
+                text = MessageTemplate.AUDIO + mediaIngestor.ingest(event.messageId, "mp4").await(mediaAwaitMillis);
+                break;
+
+            case InboundEvent.VIDEO:
+                text = MessageTemplate.VIDEO + mediaIngestor.ingest(event.messageId, "mp4", MediaPreviews.Kind.VIDEO).await(mediaAwaitMillis);
+                break;
+        }
+
+        attributes.put("text", text);
+
+        return MessageObject.build(attributes);
+    }
+
+    public Message toLineMessage(final String text) {
+        long start = System.nanoTime();
+        Message message = messageRenderer.render(text);
+        toLineMessageStage.recordMicrosSince(start);
+        return message;
+    }
+
+    @EventMapping
+    public void handleTextMessageEvent(MessageEvent<TextMessageContent> event) {
+        count("text");
+        dispatch(InboundEvent.of(event, InboundEvent.TEXT));
+    }
+
+    @EventMapping
+    public void handleStickerMessageEvent(MessageEvent<StickerMessageContent> event) {
+        count("sticker");
+        dispatch(InboundEvent.of(event, InboundEvent.STICKER));
+    }
+
+    @EventMapping
+    public void handleImageMessageEvent(MessageEvent<ImageMessageContent> event) throws IOException {
+        count("image");
+        dispatch(InboundEvent.of(event, InboundEvent.IMAGE));
+    }
+
+    @EventMapping
+    public void handleAudioMessageEvent(MessageEvent<AudioMessageContent> event) throws IOException {
+        count("audio");
+        dispatch(InboundEvent.of(event, InboundEvent.AUDIO));
+    }
+
+    @EventMapping
+    public void handleVideoMessageEvent(MessageEvent<VideoMessageContent> event) throws IOException {
+        count("video");
+        dispatch(InboundEvent.of(event, InboundEvent.VIDEO));
+    }
+
+    private void dispatch(InboundEvent event) {
+
+        RateLimiter.Admission admission = rateLimiter.admit(event.senderId, event.userId, () -> submit(event, false));
+
+        if (admission == RateLimiter.Admission.ADMITTED) {
+            submit(event, !eossBotProperties.getWebhook().isAsync());
+        }
+    }
+
+    private void submit(InboundEvent event, boolean wait) {
+
+        inFlight.incrementAndGet();
+        CompletableFuture<Void> processed = eventDispatcher.dispatch(event.senderId, deadline(event), () -> process(event));
+        processed.whenComplete((result, throwable) -> inFlight.decrementAndGet());
+
+        if (wait) {
+            processed.join();
+            return;
+        }
+
+        processed.whenComplete((result, throwable) -> {
+            if (throwable != null) throwable.printStackTrace();
+        });
+    }
+
+    private void process(InboundEvent event) {
+        if (!readiness.isReady() && eossBotProperties.getStartup().isDegraded()) {
+            metrics.counter("eoss_startup_degraded_replies_total").increment();
+            respond(event, Collections.singletonList(new TextMessage(eossBotProperties.getStartup().getDegradedReply())));
+            return;
+        }
+
+        List<Message> messages = new ArrayList<>(2);
+        Session session = getContext(event, messages);
+        try {
+            long start = System.nanoTime();
+            MessageObject messageObject = toEOSSMessage(event);
+            toEOSSMessageStage.recordMicrosSince(start);
+
+            String response = parse(event, session, messageObject);
+
+            messages.add(toLineMessage(response));
+            respond(event, messages);
+        } catch (InterruptedException | ExecutionException e) {
+            messages.add(new TextMessage("..."));
+            respond(event, messages);
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Answers from {@link ResponseCache} when it can. Any message it cannot answer may change the
+     * session, and any message from an admin may have taught the brain context something.
+     */
+    private String parse(InboundEvent event, Session session, MessageObject messageObject) {
+
+        String senderId = event.senderId;
+        boolean admin = adminIdList.contains(event.userId);
+
+        ResponseCache.Lookup lookup = !admin && InboundEvent.TEXT.equals(event.messageType)
+                ? responseCache.lookup(senderId, event.text)
+                : null;
+
+        if (lookup != null && lookup.response() != null) return lookup.response();
+
+        long start = System.nanoTime();
+        String response = session.parse(messageObject);
+        long parseMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+        parseStage.recordMicrosSince(start);
+
+        if (lookup != null) {
+            lookup.parsed(response, parseMicros);
+        } else if (admin) {
+            responseCache.invalidate();
+        } else {
+            responseCache.unsettle(senderId);
+        }
+        return response;
+    }
+
+    /**
+     * When the reply token should still be valid, the dispatcher starts the event, the time it
+     * arrived plus the token's lifetime. Media waits behind text by <code>dispatch.mediaDelayMillis</code>.
+     */
+    private long deadline(InboundEvent event) {
+
+        long receivedAt = event.timestamp != 0 ? event.timestamp : System.currentTimeMillis();
+        long deadline = receivedAt + TimeUnit.SECONDS.toMillis(eossBotProperties.getWebhook().getReplyTokenTtlSeconds());
+
+        if (!event.isMedia()) return deadline;
+        return deadline + eossBotProperties.getDispatch().getMediaDelayMillis();
+    }
+
+    /**
+     * Replies while the token is valid, and pushes instead once it has expired or LINE refused it.
+     */
+    private CompletableFuture<BotApiResponse> respond(InboundEvent event, List<Message> messages) {
+
+        String senderId = event.senderId;
+        if (isReplyTokenExpired(event)) {
+            replyTokensExpired.increment();
+            return respondByPush(senderId, messages);
+        }
+
+        long start = System.nanoTime();
+        CompletableFuture<BotApiResponse> reply = reply(event.replyToken, messages)
+                .whenComplete((response, throwable) -> replyStage.recordMicrosSince(start));
+
+        return reply.handle((response, throwable) -> {
+            if (throwable == null) {
+                replied.increment();
+                return reply;
+            }
+            if (!isReplyTokenRejection(OutboundMessenger.unwrap(throwable))) return reply;
+            replyTokensRejected.increment();
+            return respondByPush(senderId, messages);
+        }).thenCompose(Function.identity());
+    }
+
+    private CompletableFuture<BotApiResponse> respondByPush(String senderId, List<Message> messages) {
+        long start = System.nanoTime();
+        pushed.increment();
+        return push(senderId, messages)
+                .whenComplete((response, throwable) -> pushStage.recordMicrosSince(start));
+    }
+
+    private static boolean isReplyTokenRejection(Throwable cause) {
+        if (!(cause instanceof BadRequestException)) return false;
+        ErrorResponse error = ((BadRequestException) cause).getErrorResponse();
+        return error != null && INVALID_REPLY_TOKEN.equalsIgnoreCase(error.getMessage());
+    }
+
+    private boolean isReplyTokenExpired(InboundEvent event) {
+
+        if (event.timestamp==0) return false;
+
+        long ttl = eossBotProperties.getWebhook().getReplyTokenTtlSeconds();
+        return event.timestamp + TimeUnit.SECONDS.toMillis(ttl) < System.currentTimeMillis();
+    }
+
+    @EventMapping
+    public void handleUnfollowEvent(UnfollowEvent event) {
+
+        count("unfollow");
+        audience.remove(Audience.Kind.USER, event.getSource().getUserId());
+        eventJournal.append(EventJournal.UNFOLLOW, System.currentTimeMillis(), event.getSource().getUserId());
+    }
+
+    @EventMapping
+    public void handleFollowEvent(FollowEvent event) {
+
+        count("follow");
+        audience.add(Audience.Kind.USER, event.getSource().getUserId());
+        profileCache
+                .get(event.getSource().getUserId())
+                .whenComplete((profile, throwable) -> {
+
+                    if (throwable != null) {
+                        eventJournal.append(EventJournal.FOLLOW, System.currentTimeMillis(), event.getSource().getUserId());
+                        return;
+                    }
+                    eventJournal.append(EventJournal.FOLLOW, System.currentTimeMillis(), profile.getUserId(), profile.getDisplayName(), profile.getPictureUrl());
+                });
+
+    }
+
+    @EventMapping
+    public void handleJoinEvent(JoinEvent event) {
+
+        count("join");
+        if (event.getSource() instanceof  RoomSource) {
+            audience.add(Audience.Kind.ROOM, ((RoomSource)event.getSource()).getRoomId());
+            eventJournal.append(EventJournal.JOIN, System.currentTimeMillis(), ((RoomSource)event.getSource()).getRoomId());
+        } else if (event.getSource() instanceof GroupSource) {
+            audience.add(Audience.Kind.GROUP, ((GroupSource)event.getSource()).getGroupId());
+            eventJournal.append(EventJournal.JOIN, System.currentTimeMillis(), ((GroupSource)event.getSource()).getGroupId());
+        }
+    }
+
+    @EventMapping
+    public void handleLeaveEvent(LeaveEvent event) {
+
+        count("leave");
+        if (event.getSource() instanceof  RoomSource) {
+            audience.remove(Audience.Kind.ROOM, ((RoomSource)event.getSource()).getRoomId());
+            eventJournal.append(EventJournal.LEAVE, System.currentTimeMillis(), ((RoomSource)event.getSource()).getRoomId());
+        } else if (event.getSource() instanceof GroupSource) {
+            audience.remove(Audience.Kind.GROUP, ((GroupSource)event.getSource()).getGroupId());
+            eventJournal.append(EventJournal.LEAVE, System.currentTimeMillis(), ((GroupSource)event.getSource()).getGroupId());
+        }
+    }
+
+    private CompletableFuture<BotApiResponse> reply(@NonNull String replyToken, @NonNull Message message) {
+        return reply(replyToken, Collections.singletonList(message));
+    }
+
+    private CompletableFuture<BotApiResponse> reply(@NonNull String replyToken, @NonNull List<Message> messages) {
+        return outboundMessenger
+                .reply(new ReplyMessage(replyToken, messages))
+                .whenComplete(Bot::logFailure);
+    }
+
+    private CompletableFuture<BotApiResponse> push(@NonNull String senderId, @NonNull Message message) {
+        return push(senderId, Collections.singletonList(message));
+    }
+
+    private CompletableFuture<BotApiResponse> push(@NonNull String senderId, @NonNull List<Message> messages) {
+        return rateLimiter
+                .pushTurn(messages.size())
+                .thenCompose(turn -> pushBatcher.push(senderId, messages))
+                .whenComplete(Bot::logFailure);
+    }
+
+    private static void logFailure(Object result, Throwable throwable) {
+        if (throwable != null) throwable.printStackTrace();
+    }
+
+    @EventMapping
+    public void handleDefaultMessageEvent(Event event) {
+        count("other");
+    }
+
+    /**
+     * Whether no message event is queued, held by the rate limiter or running, so the bot can be closed.
+     */
+    boolean isIdle() {
+        return inFlight.get() == 0 && rateLimiter.deferred() == 0;
+    }
+
+    /**
+     * Routes an event to its handler the way {@link EventMapping} does.
+     */
+    public void handle(Event event) {
+
+        if (event instanceof MessageEvent) {
+            MessageEvent<?> messageEvent = (MessageEvent<?>) event;
+            String type = messageType(messageEvent.getMessage());
+            if (type != null) {
+                count(type);
+                dispatch(InboundEvent.of(messageEvent, type));
+                return;
+            }
+        }
+
+        if (event instanceof FollowEvent) handleFollowEvent((FollowEvent) event);
+        else if (event instanceof UnfollowEvent) handleUnfollowEvent((UnfollowEvent) event);
+        else if (event instanceof JoinEvent) handleJoinEvent((JoinEvent) event);
+        else if (event instanceof LeaveEvent) handleLeaveEvent((LeaveEvent) event);
+        else handleDefaultMessageEvent(event);
+    }
+
+    /**
+     * Takes an event from {@link WebhookReader}, which only has the LINE model of events other than messages.
+     */
+    public void handle(InboundEvent event) {
+
+        if (event.messageType == null) {
+            handle(event.event);
+            return;
+        }
+
+        count(event.messageType);
+        dispatch(event);
+    }
+
+    private static String messageType(MessageContent content) {
+        if (content instanceof TextMessageContent) return InboundEvent.TEXT;
+        if (content instanceof StickerMessageContent) return InboundEvent.STICKER;
+        if (content instanceof ImageMessageContent) return InboundEvent.IMAGE;
+        if (content instanceof AudioMessageContent) return InboundEvent.AUDIO;
+        if (content instanceof VideoMessageContent) return InboundEvent.VIDEO;
+        return null;
+    }
+
+    String getDisplayName(String userId, String suffix) {
+        String displayName = "";
+        UserProfileResponse userProfile = profileCache.getIfPresent(userId);
+        if (userProfile!=null) {
+            displayName = userProfile.getDisplayName() + suffix;
+        }
+        return displayName;
+    }
+
+    String getUID(String displayName) {
+        return profileCache.getUserId(displayName);
+    }
+
+    void callback(NodeEvent nodeEvent) {
+
+        metrics.counter("eoss_node_events_total{event=\"" + nodeEvent.event + "\"}").increment();
+
+        if (nodeEvent.event==NodeEvent.Event.RegisterAdmin) {
+            responseCache.invalidate();
+        } else if (nodeEvent.messageObject != null && nodeEvent.messageObject.attributes.get("senderId") != null) {
+            responseCache.unsettle(nodeEvent.messageObject.attributes.get("senderId").toString());
+        }
+
+        if (nodeEvent.event==NodeEvent.Event.Leave) {
+
+            String displayName = getDisplayName(nodeEvent.messageObject.attributes.get("userId").toString(), "! ");
+            String lineId = eossBotProperties.getLineId();
+            if (lineId==null)
+                lineId = "%40nhj5856v";
+            else
+                lineId = lineId.replace("@", "%40");
+
+            push(nodeEvent.messageObject.attributes.get("senderId").toString(), toLineMessage( displayName + nodeEvent.messageObject + "https://line.me/R/ti/p/" + lineId));
+            leave(nodeEvent.messageObject.attributes.get("senderId").toString());
+            return;
+        }
+
+        if (nodeEvent.event==NodeEvent.Event.LateReply) {
+
+            String [] responses = nodeEvent.messageObject.toString().split("\n");
+            List<Message> messages = new ArrayList<>(responses.length);
+            for (String response:responses) {
+                messages.add(toLineMessage(response));
+            }
+            push(nodeEvent.messageObject.attributes.get("senderId").toString(), messages);
+
+            return;
+        }
+
+        if (nodeEvent.event==NodeEvent.Event.ReservedWords) {
+
+            String displayName = getDisplayName(nodeEvent.messageObject.attributes.get("userId").toString(), "?");
+            push(nodeEvent.messageObject.attributes.get("senderId").toString(), toLineMessage(nodeEvent.messageObject + "เหรอฮะ" + " " + displayName));
+            return;
+        }
+
+        if (nodeEvent.event==NodeEvent.Event.RegisterAdmin) {
+
+            String senderId = nodeEvent.messageObject.attributes.get("senderId").toString();
+            String displayName = nodeEvent.messageObject.toString();
+            String userId = getUID(displayName);
+            if (userId!=null) {
+
+                addAdmin(userId);
+                sharedState.add(ADMINS, userId);
+                sharedState.publish(ADMINS, userId);
+
+                push(senderId, toLineMessage( "ยินดีด้วย " + displayName + " ได้ถูกเพิ่มเป็นผู้ดูแลแล้ว!"));
+
+                eventJournal.append(EventJournal.ADMIN, userId);
+
+            } else {
+                push(senderId, toLineMessage( "ไม่พบรายชื่อ " + displayName + " ในนี้"));
+            }
+            return;
+        }
+
+        if (nodeEvent.event == NodeEvent.Event.Recursive) {
+            push(nodeEvent.messageObject.attributes.get("senderId").toString(), toLineMessage(nodeEvent.messageObject.toString()));
+            return;
+        }
+    }
+
+    void leave(String senderId) {
+        Audience.Kind kind = Audience.kindOf(senderId);
+        if (kind == Audience.Kind.GROUP) {
+            audience.remove(Audience.Kind.GROUP, senderId);
+            outboundMessenger.call("leave", () -> lineMessagingClient.leaveGroup(senderId)).whenComplete(Bot::logFailure);
+        } else if (kind == Audience.Kind.ROOM) {
+            audience.remove(Audience.Kind.ROOM, senderId);
+            outboundMessenger.call("leave", () -> lineMessagingClient.leaveRoom(senderId)).whenComplete(Bot::logFailure);
+        }
+    }
+
+}
@@ -0,0 +1,18 @@
+package com.eoss.bot.line;
+
+import com.eoss.brain.net.Context;
+import com.eoss.brain.net.GAEStorageContext;
+import com.eoss.brain.net.GAEWebIndexSupportContext;
+import org.springframework.stereotype.Component;
+
+/**
+ * Creates the brain context of a bot, kept in GAE storage. Harnesses replace it with one in memory.
+ */
+@Component
+public class BrainContextFactory {
+
+    public Context create(String name) {
+        return new GAEWebIndexSupportContext(new GAEStorageContext(name));
+    }
+
+}
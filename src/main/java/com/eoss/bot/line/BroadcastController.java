@@ -0,0 +1,92 @@
+package com.eoss.bot.line;
+
+import lombok.Data;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Starts and follows broadcasts of the main bot, for callers holding <code>broadcast.token</code>.
+ */
+@RestController
+public class BroadcastController {
+
+    @Autowired
+    private EOSSBotProperties eossBotProperties;
+
+    @Autowired
+    private Broadcaster broadcaster;
+
+    @PostMapping("/broadcasts")
+    public ResponseEntity<Map<String, Object>> start(@RequestHeader(value = "Authorization", required = false) String authorization,
+                                                     @RequestBody BroadcastRequest request) {
+        if (!authorized(authorization)) return ResponseEntity.status(HttpStatus.UNAUTHORIZED).build();
+        try {
+            Broadcaster.Job job = broadcaster.start(request.getMessages(), request.getTarget());
+            return ResponseEntity.status(HttpStatus.ACCEPTED).body(job.status());
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(Collections.singletonMap("error", e.getMessage()));
+        } catch (IOException e) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(Collections.singletonMap("error", e.getMessage()));
+        }
+    }
+
+    @GetMapping("/broadcasts")
+    public ResponseEntity<List<Map<String, Object>>> list(@RequestHeader(value = "Authorization", required = false) String authorization) {
+        if (!authorized(authorization)) return ResponseEntity.status(HttpStatus.UNAUTHORIZED).build();
+        return ResponseEntity.ok(broadcaster.jobs().stream()
+                .map(Broadcaster.Job::status)
+                .collect(Collectors.toList()));
+    }
+
+    @GetMapping("/broadcasts/{id}")
+    public ResponseEntity<Map<String, Object>> status(@RequestHeader(value = "Authorization", required = false) String authorization,
+                                                      @PathVariable("id") String id) {
+        if (!authorized(authorization)) return ResponseEntity.status(HttpStatus.UNAUTHORIZED).build();
+        Broadcaster.Job job = broadcaster.get(id);
+        if (job == null) return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+        return ResponseEntity.ok(job.status());
+    }
+
+    @DeleteMapping("/broadcasts/{id}")
+    public ResponseEntity<Map<String, Object>> cancel(@RequestHeader(value = "Authorization", required = false) String authorization,
+                                                      @PathVariable("id") String id) {
+        if (!authorized(authorization)) return ResponseEntity.status(HttpStatus.UNAUTHORIZED).build();
+        Broadcaster.Job job = broadcaster.get(id);
+        if (job == null) return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+        job.cancel();
+        return ResponseEntity.status(HttpStatus.ACCEPTED).body(job.status());
+    }
+
+    private boolean authorized(String authorization) {
+        String token = eossBotProperties.getBroadcast().getToken();
+        if (token == null || token.isEmpty() || authorization == null) return false;
+        return MessageDigest.isEqual(("Bearer " + token).getBytes(StandardCharsets.UTF_8),
+                authorization.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Data
+    public static class BroadcastRequest {
+
+        private List<String> messages;
+
+        private Broadcaster.Target target = Broadcaster.Target.ALL;
+
+    }
+
+}
@@ -0,0 +1,481 @@
+package com.eoss.bot.line;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.linecorp.bot.client.LineMessagingClient;
+import com.linecorp.bot.client.exception.LineMessagingException;
+import com.linecorp.bot.client.exception.LineServerException;
+import com.linecorp.bot.client.exception.TooManyRequestsException;
+import com.linecorp.bot.model.Multicast;
+import com.linecorp.bot.model.PushMessage;
+import com.linecorp.bot.model.message.Message;
+import com.linecorp.bot.model.response.BotApiResponse;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Sends the same messages to the whole {@link Audience}: users through multicast, up to
+ * {@link #MAX_RECIPIENTS} at a time, and groups and rooms through one push each.
+ * <p>
+ * <code>broadcast.senders</code> calls are in flight at once, and recipients are paced to
+ * <code>broadcast.recipientsPerSecond</code>. A call LINE throttles is retried after
+ * <code>broadcast.pauseMillis</code>. Multicast and push are not idempotent, so a call that timed out
+ * or failed on LINE's side may have reached its recipients and is never sent again; they are counted
+ * as unknown. Each broadcast keeps its recipients and the chunks already sent on disk, so one
+ * interrupted by a restart carries on where it stopped. Finished ones are forgotten after
+ * <code>broadcast.retentionHours</code>.
+ */
+@Component
+public class Broadcaster {
+
+    public enum Target { USERS, GROUPS, ALL }
+
+    static final int MAX_RECIPIENTS = 150;
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @Autowired
+    private EOSSBotProperties eossBotProperties;
+
+    @Autowired
+    private LineMessagingClient lineMessagingClient;
+
+    @Autowired
+    private OutboundMessenger outboundMessenger;
+
+    @Autowired
+    private MessageRenderer messageRenderer;
+
+    @Autowired
+    private Audience audience;
+
+    @Autowired
+    private Metrics metrics;
+
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+
+    /**
+     * The latest job id handed out, ids are the millisecond they were started at or one more than the latest.
+     */
+    private final AtomicLong lastId = new AtomicLong();
+
+    private ScheduledExecutorService executor;
+
+    private Path directory;
+
+    private TokenBucket pace;
+
+    private LongAdder sentRecipients, failedRecipients, unknownRecipients, calls, retries;
+
+    @PostConstruct
+    public void init() throws IOException {
+
+        EOSSBotProperties.Broadcast properties = eossBotProperties.getBroadcast();
+
+        directory = Paths.get(properties.getDirectory(), eossBotProperties.getName());
+        Files.createDirectories(directory);
+
+        executor = Executors.newScheduledThreadPool(2, new NamedThreadFactory("broadcast"));
+        pace = new TokenBucket(properties.getRecipientsPerSecond(), Math.max(MAX_RECIPIENTS, properties.getRecipientsPerSecond()));
+
+        sentRecipients = metrics.counter("eoss_broadcast_recipients_total{result=\"sent\"}");
+        failedRecipients = metrics.counter("eoss_broadcast_recipients_total{result=\"failed\"}");
+        unknownRecipients = metrics.counter("eoss_broadcast_recipients_total{result=\"unknown\"}");
+        calls = metrics.counter("eoss_broadcast_calls_total");
+        retries = metrics.counter("eoss_broadcast_retries_total");
+        metrics.gauge("eoss_broadcast_running", () -> jobs.values().stream().filter(job -> job.finishedAt == 0).count());
+
+        resume();
+        executor.scheduleWithFixedDelay(this::evict, 1, 1, TimeUnit.MINUTES);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+        for (Job job : jobs.values()) {
+            job.close();
+        }
+    }
+
+    /**
+     * @param texts one to five responses, rendered the way the bot renders its answers
+     */
+    public Job start(List<String> texts, Target target) throws IOException {
+
+        if (texts == null || texts.isEmpty() || texts.size() > PushBatcher.MAX_MESSAGES) {
+            throw new IllegalArgumentException("A broadcast has 1 to " + PushBatcher.MAX_MESSAGES + " messages");
+        }
+
+        List<String> recipients = new ArrayList<>();
+        if (target != Target.GROUPS) recipients.addAll(audience.members(Audience.Kind.USER));
+        int users = recipients.size();
+        if (target != Target.USERS) {
+            recipients.addAll(audience.members(Audience.Kind.GROUP));
+            recipients.addAll(audience.members(Audience.Kind.ROOM));
+        }
+
+        String id = Long.toString(lastId.updateAndGet(last -> Math.max(last + 1, System.currentTimeMillis())));
+
+        Path jobDirectory = Files.createDirectories(directory.resolve(id));
+        Map<String, Object> meta = new LinkedHashMap<>();
+        meta.put("texts", texts);
+        meta.put("target", target);
+        meta.put("users", users);
+        meta.put("createdAt", System.currentTimeMillis());
+        MAPPER.writeValue(jobDirectory.resolve("meta.json").toFile(), meta);
+        Files.write(jobDirectory.resolve("recipients.txt"), recipients, StandardCharsets.UTF_8);
+
+        Job job = new Job(id, jobDirectory, texts, target, recipients, users, (Long) meta.get("createdAt"), new BitSet());
+        jobs.put(id, job);
+        job.start();
+        return job;
+    }
+
+    public Job get(String id) {
+        return jobs.get(id);
+    }
+
+    public Collection<Job> jobs() {
+        return jobs.values();
+    }
+
+    private void resume() throws IOException {
+
+        long evictBefore = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(eossBotProperties.getBroadcast().getRetentionHours());
+
+        try (DirectoryStream<Path> jobDirectories = Files.newDirectoryStream(directory)) {
+            for (Path jobDirectory : jobDirectories) {
+                if (!Files.isDirectory(jobDirectory)) continue;
+                try {
+                    long id = Long.parseLong(jobDirectory.getFileName().toString());
+                    lastId.accumulateAndGet(id, Math::max);
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                Path finished = jobDirectory.resolve("finished");
+                if (Files.exists(finished)) {
+                    if (Files.getLastModifiedTime(finished).toMillis() < evictBefore) delete(jobDirectory);
+                    continue;
+                }
+                try {
+                    Map<String, Object> meta = MAPPER.readValue(jobDirectory.resolve("meta.json").toFile(),
+                            new TypeReference<Map<String, Object>>() {});
+                    List<String> texts = MAPPER.convertValue(meta.get("texts"), new TypeReference<List<String>>() {});
+
+                    BitSet done = new BitSet();
+                    Path progress = jobDirectory.resolve("done.txt");
+                    if (Files.exists(progress)) {
+                        for (String chunk : Files.readAllLines(progress, StandardCharsets.UTF_8)) {
+                            if (!chunk.trim().isEmpty()) done.set(Integer.parseInt(chunk.trim()));
+                        }
+                    }
+
+                    Job job = new Job(jobDirectory.getFileName().toString(), jobDirectory, texts,
+                            Target.valueOf(meta.get("target").toString()),
+                            Files.readAllLines(jobDirectory.resolve("recipients.txt"), StandardCharsets.UTF_8),
+                            ((Number) meta.get("users")).intValue(), ((Number) meta.get("createdAt")).longValue(), done);
+                    jobs.put(job.id, job);
+                    metrics.counter("eoss_broadcast_resumed_total").increment();
+                    job.start();
+                } catch (IOException | RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Forgets the jobs finished or cancelled longer than <code>broadcast.retentionHours</code> ago, with their directory.
+     */
+    private void evict() {
+        long evictBefore = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(eossBotProperties.getBroadcast().getRetentionHours());
+        for (Job job : jobs.values()) {
+            if (job.finishedAt == 0 || job.finishedAt >= evictBefore) continue;
+            jobs.remove(job.id);
+            delete(job.directory);
+        }
+    }
+
+    private static void delete(Path jobDirectory) {
+        try (Stream<Path> files = Files.walk(jobDirectory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * One sender: takes the next chunk not sent yet, waits for the pace, sends it, and goes on.
+     */
+    private void next(Job job) {
+
+        if (job.cancelled) {
+            job.senderDone();
+            return;
+        }
+
+        Integer chunk = job.retries.poll();
+        if (chunk == null) chunk = job.nextChunk();
+        if (chunk == null) {
+            job.senderDone();
+            return;
+        }
+
+        List<String> to = job.chunk(chunk);
+        long wait = pace.tryAcquire(System.nanoTime(), to.size());
+        if (wait > 0) {
+            job.retries.add(chunk);
+            later(job, TimeUnit.NANOSECONDS.toMillis(wait) + 1);
+            return;
+        }
+
+        int sending = chunk;
+        calls.increment();
+        send(job, sending, to).whenComplete((response, throwable) -> {
+
+            if (throwable == null) {
+                job.sent.add(to.size());
+                sentRecipients.add(to.size());
+                job.markDone(sending);
+                later(job, 0);
+                return;
+            }
+
+            Throwable cause = OutboundMessenger.unwrap(throwable);
+            if (cause instanceof TooManyRequestsException
+                    && job.attempts.merge(sending, 1, Integer::sum) < eossBotProperties.getBroadcast().getMaxAttempts()) {
+                retries.increment();
+                job.retries.add(sending);
+                later(job, eossBotProperties.getBroadcast().getPauseMillis());
+                return;
+            }
+
+            if (isUnknown(cause)) {
+                job.unknown.add(to.size());
+                unknownRecipients.add(to.size());
+            } else {
+                job.failed.add(to.size());
+                failedRecipients.add(to.size());
+            }
+            job.markDone(sending);
+            later(job, 0);
+        });
+    }
+
+    /**
+     * Whether the call may have been delivered even though it failed: it timed out, or LINE failed
+     * or the connection broke after the request went out.
+     */
+    private static boolean isUnknown(Throwable cause) {
+        return cause instanceof TimeoutException || cause instanceof LineServerException || !(cause instanceof LineMessagingException);
+    }
+
+    /**
+     * Sent once, without {@link OutboundMessenger}'s retries, since sending again could deliver twice.
+     */
+    private CompletableFuture<BotApiResponse> send(Job job, int chunk, List<String> to) {
+        if (chunk < job.userChunks) {
+            Multicast multicast = new Multicast(new LinkedHashSet<>(to), job.messages);
+            return outboundMessenger.callOnce("multicast", () -> lineMessagingClient.multicast(multicast));
+        }
+        PushMessage pushMessage = new PushMessage(to.get(0), job.messages);
+        return outboundMessenger.callOnce("push", () -> lineMessagingClient.pushMessage(pushMessage));
+    }
+
+    private void later(Job job, long delayMillis) {
+        try {
+            executor.schedule(() -> next(job), delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // shutting down, the broadcast carries on after the restart
+        }
+    }
+
+    public class Job {
+
+        final String id;
+
+        final Path directory;
+
+        final List<String> texts;
+
+        final Target target;
+
+        final List<String> recipients;
+
+        final int users;
+
+        final int userChunks;
+
+        final int chunks;
+
+        final long createdAt;
+
+        final List<Message> messages;
+
+        /**
+         * Chunks sent or given up, guarded by the job lock.
+         */
+        private final BitSet done;
+
+        private final Queue<Integer> retries = new ConcurrentLinkedQueue<>();
+
+        private final Map<Integer, Integer> attempts = new ConcurrentHashMap<>();
+
+        private final AtomicInteger cursor = new AtomicInteger();
+
+        private final AtomicInteger senders = new AtomicInteger();
+
+        private final LongAdder sent = new LongAdder();
+
+        private final LongAdder failed = new LongAdder();
+
+        private final LongAdder unknown = new LongAdder();
+
+        private BufferedWriter progress;
+
+        private volatile boolean cancelled;
+
+        private volatile long finishedAt;
+
+        Job(String id, Path directory, List<String> texts, Target target, List<String> recipients, int users,
+            long createdAt, BitSet done) {
+            this.id = id;
+            this.directory = directory;
+            this.texts = texts;
+            this.target = target;
+            this.recipients = recipients;
+            this.users = users;
+            this.userChunks = (users + MAX_RECIPIENTS - 1) / MAX_RECIPIENTS;
+            this.chunks = userChunks + recipients.size() - users;
+            this.createdAt = createdAt;
+            this.done = done;
+            this.messages = texts.stream().map(messageRenderer::render).collect(Collectors.toList());
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public Map<String, Object> status() {
+            Map<String, Object> status = new LinkedHashMap<>();
+            status.put("id", id);
+            status.put("target", target);
+            status.put("state", finishedAt == 0 ? (cancelled ? "cancelling" : "running") : (cancelled ? "cancelled" : "finished"));
+            status.put("recipients", recipients.size());
+            status.put("sent", sent.sum());
+            status.put("failed", failed.sum());
+            status.put("unknown", unknown.sum());
+            status.put("chunks", chunks);
+            synchronized (this) {
+                status.put("chunksDone", done.cardinality());
+            }
+            status.put("createdAt", createdAt);
+            status.put("finishedAt", finishedAt);
+            return status;
+        }
+
+        void start() throws IOException {
+            progress = Files.newBufferedWriter(directory.resolve("done.txt"), StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            int count = Math.max(1, eossBotProperties.getBroadcast().getSenders());
+            senders.set(count);
+            for (int i = 0; i < count; i++) {
+                later(this, 0);
+            }
+        }
+
+        List<String> chunk(int chunk) {
+            if (chunk < userChunks) {
+                return recipients.subList(chunk * MAX_RECIPIENTS, Math.min(users, (chunk + 1) * MAX_RECIPIENTS));
+            }
+            return recipients.subList(users + chunk - userChunks, users + chunk - userChunks + 1);
+        }
+
+        /**
+         * @return the next chunk not sent before a restart, or null when every one was handed out
+         */
+        synchronized Integer nextChunk() {
+            int chunk = done.nextClearBit(cursor.get());
+            if (chunk >= chunks) return null;
+            cursor.set(chunk + 1);
+            return chunk;
+        }
+
+        synchronized void markDone(int chunk) {
+            done.set(chunk);
+            if (progress == null) return;
+            try {
+                progress.write(Integer.toString(chunk));
+                progress.newLine();
+                progress.flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        void senderDone() {
+            if (senders.decrementAndGet() > 0) return;
+            finishedAt = System.currentTimeMillis();
+            try {
+                Files.write(directory.resolve("finished"), new byte[0]);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            close();
+            metrics.histogram("eoss_broadcast_milliseconds").record(finishedAt - createdAt);
+        }
+
+        synchronized void close() {
+            try {
+                if (progress != null) progress.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            progress = null;
+        }
+    }
+
+}
@@ -5,6 +5,8 @@ import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.validation.annotation.Validated;
 
 import javax.validation.Valid;
+import java.util.HashMap;
+import java.util.Map;
 
 @Data
 @Validated
@@ -20,4 +22,524 @@ public class EOSSBotProperties {
     @Valid
     private String lineId;
 
+    @Valid
+    private final Sessions sessions = new Sessions();
+
+    @Valid
+    private final Dispatch dispatch = new Dispatch();
+
+    @Valid
+    private final Webhook webhook = new Webhook();
+
+    @Valid
+    private final Outbound outbound = new Outbound();
+
+    @Valid
+    private final Outbox outbox = new Outbox();
+
+    @Valid
+    private final Journal journal = new Journal();
+
+    @Valid
+    private final Media media = new Media();
+
+    @Valid
+    private final Profiles profiles = new Profiles();
+
+    @Valid
+    private final Renderer renderer = new Renderer();
+
+    @Valid
+    private final ResponseCache responseCache = new ResponseCache();
+
+    @Valid
+    private final Snapshot snapshot = new Snapshot();
+
+    @Valid
+    private final Startup startup = new Startup();
+
+    @Valid
+    private final Shared shared = new Shared();
+
+    @Valid
+    private final RateLimit rateLimit = new RateLimit();
+
+    @Valid
+    private final Audience audience = new Audience();
+
+    @Valid
+    private final Broadcast broadcast = new Broadcast();
+
+    /**
+     * More bots hosted by this process, by id. A tenant's webhook is <code>/tenants/{id}/callback</code>.
+     */
+    @Valid
+    private final Map<String, Tenant> tenants = new HashMap<>();
+
+    @Valid
+    private final Tenancy tenancy = new Tenancy();
+
+    @Data
+    public static class Sessions {
+
+        private long maximumSize = 10000;
+
+        /**
+         * Caps sessions by weight instead of count when positive.
+         */
+        private long maximumWeight;
+
+        private long idleMinutes = 30;
+
+        private boolean spill = true;
+
+        /**
+         * Local directory of the ids spilled to storage, so storage is only read for senders it has a record of.
+         */
+        private String indexDirectory = "sessions";
+
+        /**
+         * Spilled senders idle longer than this are dropped from the index, and greeted as new when they come back.
+         */
+        private long spillRetentionDays = 30;
+
+    }
+
+    @Data
+    public static class Dispatch {
+
+        /**
+         * Worker threads, defaults to the number of cores.
+         */
+        private int workers;
+
+        /**
+         * Events one sender may run before yielding its worker to other senders.
+         */
+        private int batchSize = 16;
+
+        /**
+         * Events allowed to wait for a worker before new ones are shed, 0 for no limit.
+         */
+        private int capacity = 10000;
+
+        /**
+         * How much later than text and stickers image, audio and video events are due, so their
+         * downloads wait behind fresh text.
+         */
+        private long mediaDelayMillis = 30000;
+
+    }
+
+    @Data
+    public static class Webhook {
+
+        /**
+         * Acknowledge the webhook as soon as its events are queued instead of after the reply.
+         */
+        private boolean async;
+
+        /**
+         * Age after which a reply token is treated as expired and the answer is pushed instead.
+         */
+        private long replyTokenTtlSeconds = 30;
+
+        /**
+         * Serve <code>/callback/stream</code>, which reads message events without the LINE event model.
+         */
+        private boolean streaming;
+
+    }
+
+    @Data
+    public static class Outbound {
+
+        private int maxConcurrency = 64;
+
+        private long timeoutMillis = 10000;
+
+        /**
+         * Retries of calls answered with 429 or 5xx.
+         */
+        private int maxRetries = 3;
+
+        private long backoffMillis = 500;
+
+        /**
+         * How long pushes to the same recipient wait to be sent together.
+         */
+        private long batchWindowMillis = 50;
+
+    }
+
+    @Data
+    public static class Outbox {
+
+        private boolean enabled = true;
+
+        /**
+         * Local directory of the outbox file, which has to survive a restart of the process.
+         */
+        private String directory = "outbox";
+
+        /**
+         * Size of the mapped file. A push that does not fit once delivered ones are compacted away is only kept in memory.
+         */
+        private long fileBytes = 8 * 1024 * 1024;
+
+        /**
+         * Threads retrying failed pushes and sending those left over from before a restart.
+         */
+        private int senders = 2;
+
+        private long retryMillis = 1000;
+
+        private long maxRetryMillis = 60000;
+
+        /**
+         * How long a push keeps being retried before it is given up.
+         */
+        private long maxAgeMinutes = 60;
+
+        /**
+         * Force every write to disk, so pushes also survive the machine going down, not just the process.
+         */
+        private boolean sync;
+
+    }
+
+    @Data
+    public static class Journal {
+
+        /**
+         * Local directory holding the journal segments until they are exported.
+         */
+        private String directory = "journal";
+
+        private long flushMillis = 1000;
+
+        /**
+         * Buffered records that trigger a flush before the next tick.
+         */
+        private int flushThreshold = 256;
+
+        private long segmentBytes = 1024 * 1024;
+
+        private long segmentSeconds = 300;
+
+        private long compactMinutes = 10;
+
+    }
+
+    @Data
+    public static class Media {
+
+        private int maxConcurrentUploads = 4;
+
+        private int bufferBytes = 64 * 1024;
+
+        /**
+         * How long a message waits for its upload before the brain gets the placeholder URL, 0 to never wait.
+         */
+        private long awaitMillis = 2000;
+
+        /**
+         * Store media under its content hash and skip uploads of content already stored.
+         */
+        private boolean dedup = true;
+
+        private String spoolDirectory = System.getProperty("java.io.tmpdir");
+
+        private String indexDirectory = "media-index";
+
+        private long indexCacheSize = 10000;
+
+        /**
+         * Send a downscaled JPEG as the preview of stored images and videos instead of the original.
+         */
+        private boolean previews = true;
+
+        /**
+         * Longest side of a preview.
+         */
+        private int previewPixels = 240;
+
+        private float previewQuality = 0.8f;
+
+        private int previewThreads = 1;
+
+        /**
+         * Media waiting for a preview, beyond which new media keeps the original as its preview.
+         */
+        private int previewQueueSize = 64;
+
+        private long previewCacheSize = 10000;
+
+        /**
+         * Decoder of the first frame of videos, which keep the static preview when it does not run here.
+         */
+        private String ffmpeg = "ffmpeg";
+
+        private long ffmpegTimeoutSeconds = 20;
+
+    }
+
+    @Data
+    public static class Profiles {
+
+        private long maximumSize = 10000;
+
+        private long ttlMinutes = 24 * 60;
+
+        /**
+         * Age after which a profile is reloaded in the background on its next lookup.
+         */
+        private long refreshMinutes = 60;
+
+    }
+
+    @Data
+    public static class Renderer {
+
+        /**
+         * Distinct responses whose compiled LINE message is kept.
+         */
+        private long cacheSize = 10000;
+
+    }
+
+    @Data
+    public static class ResponseCache {
+
+        private boolean enabled = false;
+
+        /**
+         * Distinct normalized texts whose answers are kept, the least valuable are evicted first.
+         */
+        private long maximumSize = 10000;
+
+        /**
+         * Sessions whose resting state is tracked, at least <code>sessions.maximumSize</code>.
+         */
+        private long maximumSessions = 100000;
+
+        /**
+         * Longer texts are always parsed, they rarely repeat.
+         */
+        private int maximumTextLength = 64;
+
+        /**
+         * Sessions whose parses have to agree on an answer before it is served from the cache.
+         */
+        private int confirmations = 3;
+
+    }
+
+    @Data
+    public static class Snapshot {
+
+        private boolean enabled = true;
+
+        /**
+         * Local directory of the snapshot file, which does not need to survive anything but a restart.
+         */
+        private String directory = "snapshot";
+
+        private long intervalSeconds = 60;
+
+        /**
+         * Frames appended before the file is rewritten as a single full frame.
+         */
+        private int compactFrames = 30;
+
+        /**
+         * Most recently active sessions rebuilt in the background right after startup.
+         */
+        private int warmSessions = 200;
+
+    }
+
+    @Data
+    public static class Startup {
+
+        /**
+         * How long startup waits for the brain context and admin list before taking traffic anyway.
+         */
+        private long timeoutMillis = 30000;
+
+        /**
+         * Answer with the degraded reply until ready, instead of making the sender wait for storage.
+         */
+        private boolean degraded = true;
+
+        /**
+         * First wait before loading the brain context or admin list again after it failed, doubled each time up to maxRetryMillis.
+         */
+        private long retryMillis = 1000;
+
+        private long maxRetryMillis = 60000;
+
+        private String degradedReply = "ขอโทษครับ ตอนนี้ระบบกำลังเริ่มทำงาน รบกวนลองใหม่อีกครั้งในอีกสักครู่นะครับ";
+
+    }
+
+    @Data
+    public static class RateLimit {
+
+        /**
+         * Off by default: the per sender limits suit one-to-one chats and would throttle busy groups.
+         */
+        private boolean enabled = false;
+
+        /**
+         * What happens to a message over its limit: dropped, held until allowed, or held with only the sender's latest kept.
+         */
+        private RateLimiter.Policy policy = RateLimiter.Policy.DELAY;
+
+        /**
+         * Messages per second for each user, group or room, 0 or less for no limit.
+         */
+        private double senderPerSecond = 2;
+
+        private int senderBurst = 5;
+
+        /**
+         * Messages per second for each user across all the groups and rooms they are in.
+         */
+        private double userPerSecond = 2;
+
+        private int userBurst = 5;
+
+        private double globalPerSecond = 200;
+
+        private int globalBurst = 400;
+
+        /**
+         * Messages per second pushed by the bot, including late and recursive replies. Pushes over it wait for their turn.
+         */
+        private double pushPerSecond = 10;
+
+        private int pushBurst = 100;
+
+        /**
+         * Longest a held message waits before it is dropped.
+         */
+        private long maxDelayMillis = 3000;
+
+        /**
+         * Senders and users whose buckets are kept, the least recently active are forgotten first.
+         */
+        private long maximumKeys = 100000;
+
+    }
+
+    @Data
+    public static class Audience {
+
+        /**
+         * Local directory of the followers, groups and rooms of each bot, kept across restarts.
+         */
+        private String directory = "audience";
+
+    }
+
+    @Data
+    public static class Broadcast {
+
+        /**
+         * Bearer token of <code>/broadcasts</code>, which is closed while it is empty.
+         */
+        private String token;
+
+        /**
+         * Local directory of running broadcasts, so they carry on after a restart.
+         */
+        private String directory = "broadcast";
+
+        /**
+         * Multicast and push calls of one broadcast in flight at once.
+         */
+        private int senders = 8;
+
+        private int recipientsPerSecond = 3000;
+
+        /**
+         * Wait before a call that LINE throttled or failed for a while is sent again.
+         */
+        private long pauseMillis = 10000;
+
+        private int maxAttempts = 10;
+
+        /**
+         * How long finished and cancelled broadcasts are listed before they and their directory are removed.
+         */
+        private long retentionHours = 24;
+
+    }
+
+    @Data
+    public static class Shared {
+
+        /**
+         * <code>memory</code> for a single node, <code>redis</code> to share sessions, profiles and admins between nodes.
+         */
+        private String backend = "memory";
+
+        private String redisHost = "localhost";
+
+        private int redisPort = 6379;
+
+        private String redisPassword;
+
+        private long timeoutMillis = 2000;
+
+        private int maxConnections = 16;
+
+        /**
+         * How long a sender is remembered as returning once every node has forgotten their session.
+         */
+        private long sessionTtlHours = 720;
+
+    }
+
+    @Data
+    public static class Tenant {
+
+        private String name;
+
+        private String domain;
+
+        private String lineId;
+
+        private String channelSecret;
+
+        private String channelToken;
+
+        /**
+         * The bot's user id, which LINE sends as <code>destination</code> to <code>/tenants/callback</code>.
+         */
+        private String destination;
+
+    }
+
+    @Data
+    public static class Tenancy {
+
+        /**
+         * Tenants kept loaded before the least recently used are closed, to be loaded again by their next event.
+         */
+        private int maximumLoaded = 50;
+
+        /**
+         * How long a message waits for its tenant to load before it also gets the degraded reply of <code>startup</code>.
+         */
+        private long degradedAfterMillis = 3000;
+
+        /**
+         * Used share of the maximum heap above which the least recently used tenants are unloaded early.
+         */
+        private double heapThreshold = 0.8;
+
+    }
+
 }
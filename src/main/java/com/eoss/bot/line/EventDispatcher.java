@@ -0,0 +1,259 @@
+package com.eoss.bot.line;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Comparator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs tasks of the same partition (the LINE sender) one at a time and in arrival order,
+ * while different partitions share a bounded worker pool.
+ * <p>
+ * Partitions wait for a worker earliest deadline first, by the deadline of the task at their head,
+ * so an event whose reply token is about to expire is handled before one that can still wait.
+ */
+@Component
+public class EventDispatcher {
+
+    @Autowired
+    private EOSSBotProperties eossBotProperties;
+
+    @Autowired
+    private Metrics metrics;
+
+    private final ConcurrentHashMap<String, Partition> partitions = new ConcurrentHashMap<>();
+
+    private final AtomicInteger queued = new AtomicInteger();
+
+    private final AtomicInteger busy = new AtomicInteger();
+
+    private ThreadPoolExecutor workers;
+
+    private LongAdder dispatched;
+
+    private LongAdder failed;
+
+    private LongAdder shed;
+
+    private LongAdder lagMillis;
+
+    private LongAdder busyMillis;
+
+    private LongAdder deadlineMisses;
+
+    @PostConstruct
+    public void init() {
+
+        int size = eossBotProperties.getDispatch().getWorkers();
+        if (size <= 0) {
+            size = Runtime.getRuntime().availableProcessors();
+        }
+
+        workers = new ThreadPoolExecutor(size, size, 0, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<>(64, Comparator.comparingLong(EventDispatcher::deadline)),
+                new NamedThreadFactory("dispatch"));
+
+        dispatched = metrics.counter("eoss_dispatch_tasks_total");
+        failed = metrics.counter("eoss_dispatch_failures_total");
+        shed = metrics.counter("eoss_dispatch_shed_total");
+        lagMillis = metrics.counter("eoss_dispatch_lag_milliseconds_total");
+        busyMillis = metrics.counter("eoss_dispatch_busy_milliseconds_total");
+        deadlineMisses = metrics.counter("eoss_dispatch_deadline_misses_total");
+        metrics.gauge("eoss_dispatch_queue_depth", queued::get);
+        metrics.gauge("eoss_dispatch_partitions", partitions::size);
+        metrics.gauge("eoss_dispatch_lag_max_milliseconds", this::maxLag);
+        metrics.gauge("eoss_dispatch_workers", workers::getMaximumPoolSize);
+        metrics.gauge("eoss_dispatch_utilization", () -> (double) busy.get() / workers.getMaximumPoolSize());
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        workers.shutdown();
+        workers.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Never blocks: when {@link EOSSBotProperties.Dispatch#getCapacity()} tasks are already waiting
+     * the task is shed and the returned future fails with a {@link RejectedExecutionException}.
+     */
+    public CompletableFuture<Void> dispatch(String partitionKey, Runnable runnable) {
+        return dispatch(partitionKey, Long.MAX_VALUE, runnable);
+    }
+
+    /**
+     * @param deadline epoch milliseconds by which the task should have started, it waits behind
+     *                 every task of another partition due earlier
+     */
+    public CompletableFuture<Void> dispatch(String partitionKey, long deadline, Runnable runnable) {
+
+        int capacity = eossBotProperties.getDispatch().getCapacity();
+        int depth = queued.incrementAndGet();
+        if (capacity > 0 && depth > capacity) {
+            queued.decrementAndGet();
+            shed.increment();
+            CompletableFuture<Void> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(new RejectedExecutionException("Dispatch queue is full"));
+            return rejected;
+        }
+
+        Task task = new Task(runnable, deadline);
+        boolean[] schedule = new boolean[1];
+
+        Partition partition = partitions.compute(partitionKey, (key, current) -> {
+            if (current == null) {
+                current = new Partition(key);
+            }
+            current.tasks.add(task);
+            if (!current.scheduled) {
+                current.scheduled = true;
+                current.deadline = deadline;
+                schedule[0] = true;
+            }
+            return current;
+        });
+
+        if (schedule[0]) {
+            workers.execute(partition);
+        }
+
+        return task.future;
+    }
+
+    public int getQueueDepth() {
+        return queued.get();
+    }
+
+    private static long deadline(Runnable runnable) {
+        return runnable instanceof Partition ? ((Partition) runnable).deadline : Long.MAX_VALUE;
+    }
+
+    private long maxLag() {
+        long now = System.currentTimeMillis();
+        long max = 0;
+        for (Partition partition : partitions.values()) {
+            Task head = partition.tasks.peek();
+            if (head != null) {
+                max = Math.max(max, now - head.enqueuedAt);
+            }
+        }
+        return max;
+    }
+
+    private class Partition implements Runnable {
+
+        final String key;
+
+        final Queue<Task> tasks = new ConcurrentLinkedQueue<>();
+
+        /**
+         * Guarded by the {@link #partitions} bin lock.
+         */
+        boolean scheduled;
+
+        /**
+         * Deadline of the head task when the partition was queued for a worker, fixed while it waits.
+         */
+        volatile long deadline = Long.MAX_VALUE;
+
+        Partition(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+
+            int batchSize = eossBotProperties.getDispatch().getBatchSize();
+
+            for (int i = 0; i < batchSize; i++) {
+
+                Task task = tasks.poll();
+                if (task == null) {
+                    if (release()) return;
+                    continue;
+                }
+
+                queued.decrementAndGet();
+                task.run();
+
+                if (overtaken()) break;
+            }
+
+            if (!release()) {
+                Task head = tasks.peek();
+                deadline = head != null ? head.deadline : Long.MAX_VALUE;
+                workers.execute(this);
+            }
+        }
+
+        /**
+         * @return true when another partition is waiting with an earlier deadline than the next task here
+         */
+        private boolean overtaken() {
+            Task head = tasks.peek();
+            return head != null && deadline(workers.getQueue().peek()) < head.deadline;
+        }
+
+        /**
+         * @return true when the partition was empty and has been dropped
+         */
+        private boolean release() {
+            boolean[] released = new boolean[1];
+            partitions.computeIfPresent(key, (k, current) -> {
+                if (current != this || !tasks.isEmpty()) return current;
+                scheduled = false;
+                released[0] = true;
+                return null;
+            });
+            return released[0];
+        }
+    }
+
+    private class Task {
+
+        final Runnable runnable;
+
+        final long deadline;
+
+        final long enqueuedAt = System.currentTimeMillis();
+
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        Task(Runnable runnable, long deadline) {
+            this.runnable = runnable;
+            this.deadline = deadline;
+        }
+
+        void run() {
+
+            long start = System.currentTimeMillis();
+            lagMillis.add(start - enqueuedAt);
+            if (start > deadline) deadlineMisses.increment();
+            busy.incrementAndGet();
+
+            try {
+                runnable.run();
+                future.complete(null);
+            } catch (Throwable e) {
+                failed.increment();
+                future.completeExceptionally(e);
+            } finally {
+                busy.decrementAndGet();
+                busyMillis.add(System.currentTimeMillis() - start);
+                dispatched.increment();
+            }
+        }
+    }
+
+}
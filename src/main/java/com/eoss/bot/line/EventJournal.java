@@ -0,0 +1,347 @@
+package com.eoss.bot.line;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Append-only log of follow, join, leave and admin events.
+ * <p>
+ * Records are buffered in memory and appended by one background thread to local segment files,
+ * rotated by size or age. Compaction exports sealed segments into the <code>&lt;name&gt;.&lt;log&gt;.txt</code>
+ * files in {@link Storage} with one read and one write per log, so existing readers keep working.
+ */
+@Component
+public class EventJournal {
+
+    public static final String FOLLOW = "follow";
+
+    public static final String UNFOLLOW = "unfollow";
+
+    public static final String JOIN = "join";
+
+    public static final String LEAVE = "leave";
+
+    /**
+     * Compacted as a set, a user id is exported only once.
+     */
+    public static final String ADMIN = "admin";
+
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    @Autowired
+    private EOSSBotProperties eossBotProperties;
+
+    @Autowired
+    private Storage storage;
+
+    @Autowired
+    private Metrics metrics;
+
+    private final Queue<Record> buffer = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger buffered = new AtomicInteger();
+
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    private final TimestampEncoder timestamps = new TimestampEncoder();
+
+    /**
+     * Only touched by the journal thread.
+     */
+    private final Map<String, Segment> activeSegments = new HashMap<>();
+
+    /**
+     * Records of each log waiting to be written, reused from flush to flush by the journal thread.
+     */
+    private final Map<String, StringBuilder> pending = new HashMap<>();
+
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    private final ByteBuffer bytes = ByteBuffer.allocate(64 * 1024);
+
+    private ScheduledExecutorService executor;
+
+    private Path directory;
+
+    private LongAdder appended;
+
+    private LongAdder flushedBytes;
+
+    private LongAdder exported;
+
+    @PostConstruct
+    public void init() throws IOException {
+
+        EOSSBotProperties.Journal properties = eossBotProperties.getJournal();
+
+        directory = Paths.get(properties.getDirectory(), eossBotProperties.getName());
+        Files.createDirectories(directory);
+
+        appended = metrics.counter("eoss_journal_records_total");
+        flushedBytes = metrics.counter("eoss_journal_flushed_bytes_total");
+        exported = metrics.counter("eoss_journal_exported_records_total");
+        metrics.gauge("eoss_journal_buffered", buffered::get);
+
+        executor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("journal"));
+        executor.scheduleWithFixedDelay(this::flush,
+                properties.getFlushMillis(), properties.getFlushMillis(), TimeUnit.MILLISECONDS);
+        executor.scheduleWithFixedDelay(this::compact,
+                0, properties.getCompactMinutes(), TimeUnit.MINUTES);
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        executor.execute(this::flush);
+        executor.execute(this::compact);
+        executor.shutdown();
+        executor.awaitTermination(20, TimeUnit.SECONDS);
+    }
+
+    public void append(String log, String record) {
+        append(new Record(log, -1, record));
+    }
+
+    /**
+     * Appends the fields tab separated after the time they happened, which is formatted on the journal thread.
+     */
+    public void append(String log, long timestamp, String... fields) {
+        append(new Record(log, timestamp, fields));
+    }
+
+    private void append(Record record) {
+
+        buffer.add(record);
+        appended.increment();
+
+        if (buffered.incrementAndGet() >= eossBotProperties.getJournal().getFlushThreshold()
+                && flushScheduled.compareAndSet(false, true)) {
+            executor.execute(this::flush);
+        }
+    }
+
+    private void flush() {
+
+        flushScheduled.set(false);
+
+        Record record;
+        while ((record = buffer.poll()) != null) {
+            buffered.decrementAndGet();
+            record.encode(pending.computeIfAbsent(record.log, log -> new StringBuilder()), timestamps);
+        }
+
+        for (Map.Entry<String, StringBuilder> logRecords : pending.entrySet()) {
+            if (logRecords.getValue().length() == 0) continue;
+            try {
+                segment(logRecords.getKey()).append(logRecords.getValue());
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                logRecords.getValue().setLength(0);
+            }
+        }
+    }
+
+    private Segment segment(String log) throws IOException {
+
+        EOSSBotProperties.Journal properties = eossBotProperties.getJournal();
+
+        Segment segment = activeSegments.get(log);
+        if (segment != null
+                && (segment.size >= properties.getSegmentBytes()
+                || System.currentTimeMillis() - segment.openedAt >= properties.getSegmentSeconds() * 1000)) {
+            seal(log);
+            segment = null;
+        }
+        if (segment == null) {
+            segment = new Segment(directory.resolve(log + "." + System.currentTimeMillis() + SEGMENT_SUFFIX));
+            activeSegments.put(log, segment);
+        }
+        return segment;
+    }
+
+    private void seal(String log) {
+        Segment segment = activeSegments.remove(log);
+        if (segment == null) return;
+        try {
+            segment.channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Exports every sealed segment to storage, then deletes it.
+     */
+    private void compact() {
+
+        flush();
+        for (String log : new ArrayList<>(activeSegments.keySet())) {
+            seal(log);
+        }
+
+        Map<String, List<Path>> segments = new HashMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String fileName = file.getFileName().toString();
+                String log = fileName.substring(0, fileName.indexOf('.'));
+                segments.computeIfAbsent(log, key -> new ArrayList<>()).add(file);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        for (Map.Entry<String, List<Path>> logSegments : segments.entrySet()) {
+            try {
+                export(logSegments.getKey(), logSegments.getValue());
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void export(String log, List<Path> files) throws IOException {
+
+        files.sort((a, b) -> Long.compare(segmentTime(a), segmentTime(b)));
+
+        List<String> records = new ArrayList<>();
+        for (Path file : files) {
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                if (!line.trim().isEmpty()) records.add(line);
+            }
+        }
+
+        String name = eossBotProperties.getName() + "." + log + ".txt";
+        StringBuilder text = new StringBuilder(storage.read(name));
+        if (text.length() > 0 && text.charAt(text.length() - 1) != '\n') {
+            text.append(System.lineSeparator());
+        }
+
+        boolean unique = ADMIN.equals(log);
+        Set<String> seen = new HashSet<>();
+        int count = 0;
+        for (String record : records) {
+            if (unique && (text.indexOf(record) != -1 || !seen.add(record))) continue;
+            text.append(record);
+            text.append(System.lineSeparator());
+            count++;
+        }
+
+        if (count > 0) {
+            storage.write(name, text.toString());
+        }
+        exported.add(count);
+
+        for (Path file : files) {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private static long segmentTime(Path file) {
+        String fileName = file.getFileName().toString();
+        try {
+            return Long.parseLong(fileName.substring(fileName.indexOf('.') + 1, fileName.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private class Segment {
+
+        final FileChannel channel;
+
+        final long openedAt = System.currentTimeMillis();
+
+        long size;
+
+        Segment(Path file) throws IOException {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            size = channel.size();
+        }
+
+        /**
+         * Encodes the records through the journal's byte buffer, without an intermediate String or byte array.
+         */
+        void append(CharSequence records) throws IOException {
+            CharBuffer chars = CharBuffer.wrap(records);
+            encoder.reset();
+            while (encoder.encode(chars, bytes, true).isOverflow()) {
+                write();
+            }
+            while (encoder.flush(bytes).isOverflow()) {
+                write();
+            }
+            write();
+        }
+
+        private void write() throws IOException {
+            bytes.flip();
+            flushedBytes.add(bytes.remaining());
+            while (bytes.hasRemaining()) {
+                size += channel.write(bytes);
+            }
+            bytes.clear();
+        }
+    }
+
+    private static class Record {
+
+        final String log;
+
+        /**
+         * Epoch milliseconds, or -1 for a record written as is.
+         */
+        final long timestamp;
+
+        final String[] fields;
+
+        Record(String log, long timestamp, String... fields) {
+            this.log = log;
+            this.timestamp = timestamp;
+            this.fields = fields;
+        }
+
+        void encode(StringBuilder out, TimestampEncoder timestamps) {
+            boolean tab = timestamp >= 0;
+            if (tab) timestamps.appendTo(out, timestamp);
+            for (String field : fields) {
+                if (tab) out.append('\t');
+                out.append(field);
+                tab = true;
+            }
+            out.append(System.lineSeparator());
+        }
+    }
+
+}
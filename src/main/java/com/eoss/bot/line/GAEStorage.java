@@ -0,0 +1,36 @@
+package com.eoss.bot.line;
+
+import com.eoss.util.GAEWebStream;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+@Component
+public class GAEStorage implements Storage {
+
+    @Override
+    public String read(String name) {
+        return new GAEWebStream(name).read();
+    }
+
+    @Override
+    public void write(String name, String text) {
+        new GAEWebStream(name).write(text);
+    }
+
+    @Override
+    public void write(String name, InputStream in) throws IOException {
+        try {
+            new GAEWebStream(name).write(in);
+        } catch (Exception e) {
+            throw new IOException("Cannot write " + name, e);
+        }
+    }
+
+    @Override
+    public String getURL(String name) {
+        return new GAEWebStream(name).getURL();
+    }
+
+}
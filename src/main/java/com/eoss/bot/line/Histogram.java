@@ -0,0 +1,91 @@
+package com.eoss.bot.line;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed bucket latency histogram, cheap enough to record on every call.
+ * The unit is whatever the bounds are in, milliseconds unless told otherwise.
+ */
+public class Histogram {
+
+    static final long[] MILLISECONDS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000};
+
+    static final long[] MICROSECONDS = {10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 20000, 50000,
+            100000, 200000, 500000, 1000000, 2000000, 5000000, 10000000, 30000000};
+
+    private final long[] bounds;
+
+    private final LongAdder[] buckets;
+
+    private final LongAdder sum = new LongAdder();
+
+    public Histogram() {
+        this(MILLISECONDS);
+    }
+
+    public Histogram(long[] bounds) {
+        this.bounds = bounds;
+        buckets = new LongAdder[bounds.length + 1];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void record(long value) {
+        int i = 0;
+        while (i < bounds.length && value > bounds[i]) i++;
+        buckets[i].increment();
+        sum.add(value);
+    }
+
+    /**
+     * Records the time since <code>startNanos</code>, a {@link System#nanoTime()} reading, in microseconds.
+     */
+    public void recordMicrosSince(long startNanos) {
+        record((System.nanoTime() - startNanos) / 1000);
+    }
+
+    public long[] bounds() {
+        return bounds.clone();
+    }
+
+    public long count() {
+        long count = 0;
+        for (LongAdder bucket : buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    public long sum() {
+        return sum.sum();
+    }
+
+    /**
+     * @return cumulative counts, one per bound followed by the +Inf bucket
+     */
+    public long[] cumulativeCounts() {
+        long[] counts = new long[buckets.length];
+        long total = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            total += buckets[i].sum();
+            counts[i] = total;
+        }
+        return counts;
+    }
+
+    /**
+     * @return the upper bound of the bucket holding the given quantile
+     */
+    public long percentile(double quantile) {
+        long[] counts = cumulativeCounts();
+        long total = counts[counts.length - 1];
+        if (total == 0) return 0;
+        long rank = (long) Math.ceil(quantile * total);
+        for (int i = 0; i < bounds.length; i++) {
+            if (counts[i] >= rank) return bounds[i];
+        }
+        return Long.MAX_VALUE;
+    }
+
+}
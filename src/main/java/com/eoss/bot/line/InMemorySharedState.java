@@ -0,0 +1,142 @@
+package com.eoss.bot.line;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * {@link SharedState} of a single node, the default. Nodes created with {@link #join()} share
+ * the same state and see each other's messages, which stands in for a networked backend when
+ * several bots run in one JVM.
+ */
+@Component
+@ConditionalOnProperty(prefix = "eoss.bot.shared", name = "backend", havingValue = "memory", matchIfMissing = true)
+public class InMemorySharedState implements SharedState {
+
+    private final Space space;
+
+    public InMemorySharedState() {
+        this(new Space());
+    }
+
+    private InMemorySharedState(Space space) {
+        this.space = space;
+    }
+
+    /**
+     * @return another node on the same state
+     */
+    public InMemorySharedState join() {
+        return new InMemorySharedState(space);
+    }
+
+    @Override
+    public String get(String key) {
+        Value value = space.values.get(key);
+        if (value == null) return null;
+        if (value.expired(System.currentTimeMillis())) {
+            space.values.remove(key, value);
+            return null;
+        }
+        return value.value;
+    }
+
+    @Override
+    public void put(String key, String value, long ttlSeconds) {
+        space.values.put(key, new Value(value, System.currentTimeMillis() + ttlSeconds * 1000));
+    }
+
+    @Override
+    public void remove(String key) {
+        space.values.remove(key);
+    }
+
+    @Override
+    public Set<String> members(String set) {
+        Set<String> members = space.sets.get(set);
+        return members == null ? Collections.emptySet() : new HashSet<>(members);
+    }
+
+    @Override
+    public void add(String set, String member) {
+        space.sets.computeIfAbsent(set, key -> ConcurrentHashMap.newKeySet()).add(member);
+    }
+
+    @Override
+    public void publish(String channel, String message) {
+        for (Listener listener : space.listeners.getOrDefault(channel, Collections.emptyList())) {
+            if (listener.node == this) continue;
+            try {
+                listener.consumer.accept(message);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    @Override
+    public void subscribe(String channel, Consumer<String> listener) {
+        space.listeners.computeIfAbsent(channel, key -> new CopyOnWriteArrayList<>()).add(new Listener(this, listener));
+    }
+
+    @Override
+    public void unsubscribe(String channel, Consumer<String> listener) {
+        List<Listener> listeners = space.listeners.get(channel);
+        if (listeners != null) {
+            listeners.removeIf(registered -> registered.node == this && registered.consumer == listener);
+        }
+    }
+
+    @Scheduled(fixedDelay = 60000)
+    public void purge() {
+        long now = System.currentTimeMillis();
+        space.values.values().removeIf(value -> value.expired(now));
+    }
+
+    private static class Space {
+
+        final Map<String, Value> values = new ConcurrentHashMap<>();
+
+        final Map<String, Set<String>> sets = new ConcurrentHashMap<>();
+
+        final Map<String, List<Listener>> listeners = new ConcurrentHashMap<>();
+    }
+
+    private static class Value {
+
+        final String value;
+
+        final long expiresAt;
+
+        Value(String value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean expired(long now) {
+            return now >= expiresAt;
+        }
+    }
+
+    private static class Listener {
+
+        final InMemorySharedState node;
+
+        final Consumer<String> consumer;
+
+        Listener(InMemorySharedState node, Consumer<String> consumer) {
+            this.node = node;
+            this.consumer = consumer;
+        }
+    }
+
+}
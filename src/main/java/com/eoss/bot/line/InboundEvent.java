@@ -0,0 +1,95 @@
+package com.eoss.bot.line;
+
+import com.linecorp.bot.model.event.Event;
+import com.linecorp.bot.model.event.MessageEvent;
+import com.linecorp.bot.model.event.message.MessageContent;
+import com.linecorp.bot.model.event.message.StickerMessageContent;
+import com.linecorp.bot.model.event.message.TextMessageContent;
+
+/**
+ * What {@link Bot} needs of a text, sticker, image, audio or video message. {@link WebhookReader}
+ * reads it straight from the webhook body, other events keep the LINE model in {@link #event}.
+ */
+public class InboundEvent {
+
+    public static final String TEXT = "text";
+
+    public static final String STICKER = "sticker";
+
+    public static final String IMAGE = "image";
+
+    public static final String AUDIO = "audio";
+
+    public static final String VIDEO = "video";
+
+    public final String replyToken;
+
+    /**
+     * Epoch millis, 0 when LINE sent none.
+     */
+    public final long timestamp;
+
+    public final String userId;
+
+    public final String senderId;
+
+    /**
+     * One of the message types above, or null for an event the bot only has the LINE model of.
+     */
+    public final String messageType;
+
+    public final String messageId;
+
+    public final String text;
+
+    public final String packageId;
+
+    public final String stickerId;
+
+    /**
+     * The LINE model of the event, when it was parsed into one.
+     */
+    public final Event event;
+
+    public InboundEvent(String replyToken, long timestamp, String userId, String senderId, String messageType,
+                        String messageId, String text, String packageId, String stickerId, Event event) {
+        this.replyToken = replyToken;
+        this.timestamp = timestamp;
+        this.userId = userId;
+        this.senderId = senderId;
+        this.messageType = messageType;
+        this.messageId = messageId;
+        this.text = text;
+        this.packageId = packageId;
+        this.stickerId = stickerId;
+        this.event = event;
+    }
+
+    public boolean isMedia() {
+        return !TEXT.equals(messageType) && !STICKER.equals(messageType);
+    }
+
+    static InboundEvent of(Event event) {
+        return new InboundEvent(null, 0, null, null, null, null, null, null, null, event);
+    }
+
+    static InboundEvent of(MessageEvent<? extends MessageContent> event, String messageType) {
+
+        MessageContent content = event.getMessage();
+        String text = content instanceof TextMessageContent ? ((TextMessageContent) content).getText() : null;
+        StickerMessageContent sticker = content instanceof StickerMessageContent ? (StickerMessageContent) content : null;
+
+        return new InboundEvent(
+                event.getReplyToken(),
+                event.getTimestamp() != null ? event.getTimestamp().toEpochMilli() : 0,
+                event.getSource().getUserId(),
+                event.getSource().getSenderId(),
+                messageType,
+                content.getId(),
+                text,
+                sticker != null ? sticker.getPackageId() : null,
+                sticker != null ? sticker.getStickerId() : null,
+                event);
+    }
+
+}
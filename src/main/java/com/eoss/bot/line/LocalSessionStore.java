@@ -0,0 +1,359 @@
+package com.eoss.bot.line;
+
+import com.eoss.brain.Session;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.Weigher;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded in-heap sessions. Idle or overflowing sessions are evicted and their
+ * {@link SessionRecord} spilled to {@link Storage}, so a returning sender is rehydrated
+ * instead of being greeted as a stranger. The ids spilled in the last <code>sessions.spillRetentionDays</code>
+ * are listed in a local file, and storage is only read for those, not for every new sender.
+ * <p>
+ * Records are also kept in {@link SharedState}, so a sender whose messages move to another node, say
+ * after a failover, is rehydrated there. Live sessions are not kept in step across nodes: with more
+ * than one node the load balancer has to route each sender's webhooks to the same node.
+ */
+@Component
+public class LocalSessionStore implements SessionStore {
+
+    @Autowired
+    private EOSSBotProperties eossBotProperties;
+
+    @Autowired
+    private Storage storage;
+
+    @Autowired
+    private Metrics metrics;
+
+    @Autowired
+    private SharedState sharedState;
+
+    @Autowired(required = false)
+    private Weigher<String, Session> weigher;
+
+    private final Map<String, SessionRecord> pendingSpills = new ConcurrentHashMap<>();
+
+    private final Map<String, SessionRecord> restored = new ConcurrentHashMap<>();
+
+    /**
+     * When each spilled sender was last active, as written to the index file.
+     */
+    private final Map<String, Long> spilledAt = new ConcurrentHashMap<>();
+
+    /**
+     * The index file and everything below are guarded by {@link #spilledAt}.
+     */
+    private Path indexFile;
+
+    private BufferedWriter index;
+
+    private int indexLines;
+
+    private ExecutorService spillExecutor;
+
+    private Cache<String, Entry> cache;
+
+    private LongAdder hits;
+
+    private LongAdder misses;
+
+    private LongAdder evictions;
+
+    private LongAdder rehydrations;
+
+    @PostConstruct
+    public void init() throws IOException {
+
+        EOSSBotProperties.Sessions properties = eossBotProperties.getSessions();
+
+        if (properties.isSpill()) {
+            Path directory = Files.createDirectories(Paths.get(properties.getIndexDirectory()));
+            indexFile = directory.resolve(eossBotProperties.getName() + ".spilled");
+            readIndex();
+        }
+
+        spillExecutor = Executors.newSingleThreadExecutor(new NamedThreadFactory("session-spill"));
+
+        Caffeine<String, Entry> builder = Caffeine.newBuilder()
+                .expireAfterAccess(properties.getIdleMinutes(), TimeUnit.MINUTES)
+                .executor(spillExecutor)
+                .removalListener(this::onRemoval);
+
+        if (properties.getMaximumWeight() > 0) {
+            Weigher<String, Session> sessionWeigher = weigher != null ? weigher : (id, session) -> 1;
+            builder = builder
+                    .maximumWeight(properties.getMaximumWeight())
+                    .weigher((String id, Entry entry) -> sessionWeigher.weigh(id, entry.session));
+        } else {
+            builder = builder.maximumSize(properties.getMaximumSize());
+        }
+
+        cache = builder.build();
+
+        hits = metrics.counter("eoss_sessions_hits_total");
+        misses = metrics.counter("eoss_sessions_misses_total");
+        evictions = metrics.counter("eoss_sessions_evictions_total");
+        rehydrations = metrics.counter("eoss_sessions_rehydrations_total");
+        metrics.gauge("eoss_sessions_size", this::size);
+        metrics.gauge("eoss_sessions_spilled", spilledAt::size);
+    }
+
+    @PreDestroy
+    public void shutdown() throws IOException {
+        spillExecutor.shutdown();
+        synchronized (spilledAt) {
+            if (index != null) index.close();
+            index = null;
+        }
+    }
+
+    @Override
+    public Session get(String sessionId, SessionLoader loader) {
+
+        Entry entry = cache.getIfPresent(sessionId);
+        if (entry != null) {
+            hits.increment();
+        } else {
+            SessionRecord spilled = find(sessionId);
+            entry = cache.get(sessionId, id -> load(id, loader, spilled));
+            if (entry.unshared) {
+                entry.unshared = false;
+                share(new SessionRecord(sessionId, entry.createdAt, entry.lastAccessAt));
+            }
+        }
+        entry.lastAccessAt = System.currentTimeMillis();
+        return entry.session;
+    }
+
+    @Override
+    public void invalidate(String sessionId) {
+        cache.invalidate(sessionId);
+    }
+
+    @Override
+    public long size() {
+        return cache.estimatedSize();
+    }
+
+    @Override
+    public Collection<SessionRecord> records() {
+        List<SessionRecord> records = new ArrayList<>(restored.values());
+        for (Map.Entry<String, Entry> entry : cache.asMap().entrySet()) {
+            Entry value = entry.getValue();
+            records.add(new SessionRecord(entry.getKey(), value.createdAt, value.lastAccessAt));
+        }
+        return records;
+    }
+
+    @Override
+    public void restore(SessionRecord record) {
+        if (cache.getIfPresent(record.sessionId) != null) return;
+        restored.merge(record.sessionId, record, (was, now) -> now.lastAccessAt > was.lastAccessAt ? now : was);
+    }
+
+    /**
+     * Expires sessions, spilling restored ones that went idle the same way an evicted one is.
+     */
+    @Scheduled(fixedDelay = 60000)
+    public void cleanUp() {
+
+        cache.cleanUp();
+        forgetSpilled();
+
+        long idleBefore = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(eossBotProperties.getSessions().getIdleMinutes());
+        for (SessionRecord record : restored.values()) {
+            if (record.lastAccessAt >= idleBefore) continue;
+            spill(record);
+            if (restored.remove(record.sessionId, record)) {
+                evictions.increment();
+            }
+        }
+    }
+
+    /**
+     * Looks for the record of a sender not in the cache, before and outside the cache's compute, since it may go over the network.
+     */
+    private SessionRecord find(String sessionId) {
+
+        SessionRecord spilled = restored.get(sessionId);
+        if (spilled == null) {
+            spilled = pendingSpills.get(sessionId);
+        }
+        if (spilled == null) {
+            spilled = SessionRecord.decode(sharedState.get(sharedKey(sessionId)));
+        }
+        if (spilled == null && eossBotProperties.getSessions().isSpill() && spilledAt.containsKey(sessionId)) {
+            spilled = SessionRecord.decode(storage.read(spillName(sessionId)));
+        }
+        return spilled;
+    }
+
+    private Entry load(String sessionId, SessionLoader loader, SessionRecord spilled) {
+
+        misses.increment();
+
+        restored.remove(sessionId);
+        if (spilled != null) {
+            rehydrations.increment();
+        }
+
+        Session session = loader.load(sessionId, spilled);
+        return new Entry(session, spilled != null ? spilled.createdAt : System.currentTimeMillis());
+    }
+
+    /**
+     * Tells other nodes the sender is known, so whichever node the next message lands on does not greet them again.
+     */
+    private void share(SessionRecord record) {
+        sharedState.put(sharedKey(record.sessionId), record.encode(),
+                TimeUnit.HOURS.toSeconds(eossBotProperties.getShared().getSessionTtlHours()));
+    }
+
+    private void onRemoval(String sessionId, Entry entry, RemovalCause cause) {
+
+        if (!cause.wasEvicted() || entry == null) return;
+
+        evictions.increment();
+
+        spill(new SessionRecord(sessionId, entry.createdAt, entry.lastAccessAt));
+    }
+
+    private void spill(SessionRecord record) {
+
+        share(record);
+
+        if (!eossBotProperties.getSessions().isSpill()) return;
+
+        pendingSpills.put(record.sessionId, record);
+        try {
+            storage.write(spillName(record.sessionId), record.encode());
+            index(record);
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            pendingSpills.remove(record.sessionId, record);
+        }
+    }
+
+    private void index(SessionRecord record) throws IOException {
+        synchronized (spilledAt) {
+            spilledAt.put(record.sessionId, record.lastAccessAt);
+            if (index == null) return;
+            index.write(record.sessionId + '\t' + record.lastAccessAt);
+            index.newLine();
+            index.flush();
+            indexLines++;
+        }
+    }
+
+    /**
+     * Loads the index without the senders past retention, and writes it back without them.
+     */
+    private void readIndex() throws IOException {
+        long now = System.currentTimeMillis();
+        long before = spillRetentionStart();
+        if (Files.exists(indexFile)) {
+            for (String line : Files.readAllLines(indexFile, StandardCharsets.UTF_8)) {
+                if (line.isEmpty()) continue;
+                int tab = line.indexOf('\t');
+                // Lines written before the index carried times are kept for one retention period from now
+                long lastAccessAt = tab < 0 ? now : Long.parseLong(line.substring(tab + 1));
+                String sessionId = tab < 0 ? line : line.substring(0, tab);
+                if (lastAccessAt >= before) spilledAt.merge(sessionId, lastAccessAt, Math::max);
+            }
+        }
+        synchronized (spilledAt) {
+            rewriteIndex();
+        }
+    }
+
+    /**
+     * Drops the senders past retention, and rewrites the index once most of its lines are stale.
+     */
+    private void forgetSpilled() {
+        if (indexFile == null) return;
+        long before = spillRetentionStart();
+        synchronized (spilledAt) {
+            spilledAt.values().removeIf(lastAccessAt -> lastAccessAt < before);
+            if (indexLines <= 2 * spilledAt.size() + 1000) return;
+            try {
+                rewriteIndex();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void rewriteIndex() throws IOException {
+        if (index != null) index.close();
+        Path temp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Long> entry : spilledAt.entrySet()) {
+                out.write(entry.getKey() + '\t' + entry.getValue());
+                out.newLine();
+            }
+        }
+        Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        index = Files.newBufferedWriter(indexFile, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+        indexLines = spilledAt.size();
+    }
+
+    private long spillRetentionStart() {
+        return System.currentTimeMillis() - TimeUnit.DAYS.toMillis(eossBotProperties.getSessions().getSpillRetentionDays());
+    }
+
+    private static String sharedKey(String sessionId) {
+        return "session:" + sessionId;
+    }
+
+    private String spillName(String sessionId) {
+        return eossBotProperties.getName() + ".session." + sessionId + ".txt";
+    }
+
+    private static class Entry {
+
+        final Session session;
+
+        final long createdAt;
+
+        volatile long lastAccessAt;
+
+        /**
+         * Created but not in {@link SharedState} yet, which the thread that loaded it does after the cache's compute.
+         */
+        volatile boolean unshared = true;
+
+        Entry(Session session, long createdAt) {
+            this.session = session;
+            this.createdAt = createdAt;
+            this.lastAccessAt = createdAt;
+        }
+    }
+
+}
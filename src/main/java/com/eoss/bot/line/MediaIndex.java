@@ -0,0 +1,120 @@
+package com.eoss.bot.line;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Maps a content hash to the URL the content is already stored under: an in-memory LRU in front
+ * of an on-disk map with one small file per hash.
+ */
+@Component
+public class MediaIndex {
+
+    @Autowired
+    private EOSSBotProperties eossBotProperties;
+
+    @Autowired
+    private Metrics metrics;
+
+    private Cache<String, String> cache;
+
+    private Path directory;
+
+    private LongAdder hits;
+
+    private LongAdder misses;
+
+    private LongAdder savedBytes;
+
+    @PostConstruct
+    public void init() throws IOException {
+
+        EOSSBotProperties.Media properties = eossBotProperties.getMedia();
+
+        directory = Paths.get(properties.getIndexDirectory(), eossBotProperties.getName());
+        Files.createDirectories(directory);
+
+        cache = Caffeine.newBuilder()
+                .maximumSize(properties.getIndexCacheSize())
+                .build();
+
+        hits = metrics.counter("eoss_media_dedup_hits_total");
+        misses = metrics.counter("eoss_media_dedup_misses_total");
+        savedBytes = metrics.counter("eoss_media_dedup_saved_bytes_total");
+        metrics.gauge("eoss_media_dedup_hit_ratio", () -> {
+            long hitCount = hits.sum();
+            long total = hitCount + misses.sum();
+            return total == 0 ? 0 : (double) hitCount / total;
+        });
+    }
+
+    /**
+     * @return the URL of content already stored under this hash, or null
+     */
+    public String get(String hash) {
+
+        String url = cache.getIfPresent(hash);
+        if (url == null) {
+            url = readFromDisk(hash);
+            if (url != null) {
+                cache.put(hash, url);
+            }
+        }
+
+        if (url == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return url;
+    }
+
+    /**
+     * Records an upload skipped because the content was already stored.
+     */
+    public void saved(long bytes) {
+        savedBytes.add(bytes);
+    }
+
+    public void put(String hash, String url) {
+
+        cache.put(hash, url);
+
+        Path file = file(hash);
+        try {
+            Files.createDirectories(file.getParent());
+            Path temp = Files.createTempFile(file.getParent(), hash, ".tmp");
+            Files.write(temp, url.getBytes(StandardCharsets.UTF_8));
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private String readFromDisk(String hash) {
+        Path file = file(hash);
+        if (!Files.exists(file)) return null;
+        try {
+            return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private Path file(String hash) {
+        return directory.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+}
@@ -0,0 +1,281 @@
+package com.eoss.bot.line;
+
+import com.linecorp.bot.client.LineMessagingClient;
+import com.linecorp.bot.client.MessageContentResponse;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDateTime;
+import java.util.UUID;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Streams image, audio and video content from LINE into {@link Storage} on a bounded upload pool,
+ * in fixed size chunks, off the webhook thread. With dedup on, content is stored under its SHA-256
+ * so a repeated upload is skipped in favour of the URL already in the {@link MediaIndex}. The local
+ * copy of images and videos is then handed to {@link MediaPreviews}.
+ */
+@Component
+public class MediaIngestor {
+
+    @Autowired
+    private EOSSBotProperties eossBotProperties;
+
+    @Autowired
+    private LineMessagingClient lineMessagingClient;
+
+    @Autowired
+    private Storage storage;
+
+    @Autowired
+    private MediaIndex mediaIndex;
+
+    @Autowired
+    private MediaPreviews mediaPreviews;
+
+    @Autowired
+    private Metrics metrics;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private ThreadPoolExecutor uploads;
+
+    private LongAdder uploaded;
+
+    private LongAdder uploadedBytes;
+
+    private LongAdder failed;
+
+    private Histogram latency;
+
+    @PostConstruct
+    public void init() {
+
+        int size = eossBotProperties.getMedia().getMaxConcurrentUploads();
+        uploads = new ThreadPoolExecutor(size, size, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), new NamedThreadFactory("media-upload"));
+
+        uploaded = metrics.counter("eoss_media_uploads_total");
+        uploadedBytes = metrics.counter("eoss_media_uploaded_bytes_total");
+        failed = metrics.counter("eoss_media_upload_failures_total");
+        latency = metrics.histogram("eoss_media_upload_milliseconds");
+        metrics.gauge("eoss_media_uploads_in_flight", inFlight::get);
+        metrics.gauge("eoss_media_uploads_queued", () -> uploads.getQueue().size());
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        uploads.shutdown();
+        uploads.awaitTermination(30, TimeUnit.SECONDS);
+    }
+
+    public MediaUpload ingest(String messageId, String ext) {
+        return ingest(messageId, ext, null);
+    }
+
+    /**
+     * @param preview what to make a preview of, or null for none
+     */
+    public MediaUpload ingest(String messageId, String ext, MediaPreviews.Kind preview) {
+
+        String fileName = LocalDateTime.now().toString() + '-' + UUID.randomUUID().toString() + '.' + ext;
+        MediaUpload upload = new MediaUpload(storage.getURL(fileName));
+        boolean dedup = eossBotProperties.getMedia().isDedup();
+        long start = System.currentTimeMillis();
+
+        lineMessagingClient
+                .getMessageContent(messageId)
+                .thenApplyAsync(response -> dedup ? store(upload, fileName, ext, preview, response) : copy(upload, fileName, ext, preview, response), uploads)
+                .whenComplete((url, throwable) -> {
+                    latency.record(System.currentTimeMillis() - start);
+                    if (throwable != null) {
+                        failed.increment();
+                        throwable.printStackTrace();
+                        upload.uploaded.completeExceptionally(OutboundMessenger.unwrap(throwable));
+                    } else {
+                        uploaded.increment();
+                        upload.uploaded.complete(url);
+                    }
+                });
+
+        return upload;
+    }
+
+    private String copy(MediaUpload upload, String fileName, String ext, MediaPreviews.Kind preview, MessageContentResponse response) {
+
+        inFlight.incrementAndGet();
+
+        EOSSBotProperties.Media properties = eossBotProperties.getMedia();
+        Path spool = null;
+
+        try {
+
+            if (preview != null && mediaPreviews.isEnabled(preview)) {
+                spool = Files.createTempFile(Paths.get(properties.getSpoolDirectory()), "media-", '.' + ext);
+            }
+
+            String url;
+            try (InputStream in = new CountingInputStream(new BufferedInputStream(response.getStream(), properties.getBufferBytes()));
+                 OutputStream copy = spool != null ? Files.newOutputStream(spool) : null) {
+
+                url = upload.settle(upload.placeholderUrl);
+                storage.write(fileName, copy != null ? new TeeInputStream(in, copy) : in);
+            }
+
+            if (spool != null) {
+                mediaPreviews.submit(preview, url, fileName, spool);
+                spool = null;
+            }
+            return url;
+
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot store " + fileName, e);
+        } finally {
+            inFlight.decrementAndGet();
+            delete(spool);
+        }
+    }
+
+    /**
+     * Spools the content to a local file while hashing it, then stores it under its hash
+     * unless the same content is stored already.
+     */
+    private String store(MediaUpload upload, String fileName, String ext, MediaPreviews.Kind preview, MessageContentResponse response) {
+
+        inFlight.incrementAndGet();
+
+        EOSSBotProperties.Media properties = eossBotProperties.getMedia();
+        Path spool = null;
+
+        try {
+
+            spool = Files.createTempFile(Paths.get(properties.getSpoolDirectory()), "media-", '.' + ext);
+
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[properties.getBufferBytes()];
+            long size = 0;
+
+            try (InputStream in = response.getStream(); OutputStream out = Files.newOutputStream(spool)) {
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    digest.update(buffer, 0, n);
+                    out.write(buffer, 0, n);
+                    size += n;
+                }
+            }
+
+            String hash = toHex(digest.digest()) + '.' + ext;
+            String existing = mediaIndex.get(hash);
+            String url = upload.settle(existing != null ? existing : storage.getURL(hash));
+            String name = url.equals(upload.placeholderUrl) ? fileName : hash;
+
+            if (url.equals(existing)) {
+                mediaIndex.saved(size);
+            } else {
+                try (InputStream in = Files.newInputStream(spool)) {
+                    storage.write(name, in);
+                }
+                uploadedBytes.add(size);
+
+                if (existing == null) {
+                    mediaIndex.put(hash, url);
+                }
+            }
+
+            if (preview != null) {
+                mediaPreviews.submit(preview, url, name, spool);
+                spool = null;
+            }
+            return url;
+
+        } catch (IOException | NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Cannot store " + fileName, e);
+        } finally {
+            inFlight.decrementAndGet();
+            delete(spool);
+        }
+    }
+
+    private static void delete(Path spool) {
+        if (spool == null) return;
+        try {
+            Files.deleteIfExists(spool);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = Character.forDigit((bytes[i] >> 4) & 0xF, 16);
+            hex[i * 2 + 1] = Character.forDigit(bytes[i] & 0xF, 16);
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Copies everything read to a local file, for the preview.
+     */
+    private static class TeeInputStream extends FilterInputStream {
+
+        private final OutputStream copy;
+
+        TeeInputStream(InputStream in, OutputStream copy) {
+            super(in);
+            this.copy = copy;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) copy.write(b);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) copy.write(b, off, n);
+            return n;
+        }
+    }
+
+    private class CountingInputStream extends FilterInputStream {
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) uploadedBytes.increment();
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) uploadedBytes.add(n);
+            return n;
+        }
+    }
+
+}
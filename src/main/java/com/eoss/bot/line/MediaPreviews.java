@@ -0,0 +1,383 @@
+package com.eoss.bot.line;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Small JPEG previews of stored images and videos, so chat bubbles do not download the original.
+ * <p>
+ * {@link MediaIngestor} hands over its local copy of the content and previews are made from it on a
+ * bounded pool: images are decoded subsampled and scaled to fit <code>media.previewPixels</code>,
+ * videos get their first frame through <code>media.ffmpeg</code> when it runs on this machine. The
+ * URLs of finished previews are shared with the other nodes and kept in a bounded cache in front of
+ * one small file per original under <code>media.indexDirectory</code>, so they outlive a restart.
+ */
+@Component
+public class MediaPreviews {
+
+    public enum Kind { IMAGE, VIDEO }
+
+    private static final String CHANNEL = "previews";
+
+    @Autowired
+    private EOSSBotProperties eossBotProperties;
+
+    @Autowired
+    private Storage storage;
+
+    @Autowired
+    private SharedState sharedState;
+
+    @Autowired
+    private Metrics metrics;
+
+    private final List<Consumer<String>> listeners = new CopyOnWriteArrayList<>();
+
+    private Cache<String, String> previews;
+
+    private Path directory;
+
+    private ThreadPoolExecutor executor;
+
+    private volatile boolean ffmpeg;
+
+    private LongAdder dropped;
+
+    private LongAdder failed;
+
+    private LongAdder savedBytes;
+
+    private Histogram latency;
+
+    @PostConstruct
+    public void init() throws IOException {
+
+        EOSSBotProperties.Media properties = eossBotProperties.getMedia();
+
+        directory = Paths.get(properties.getIndexDirectory(), "previews");
+        Files.createDirectories(directory);
+
+        previews = Caffeine.newBuilder()
+                .maximumSize(properties.getPreviewCacheSize())
+                .build();
+
+        executor = new ThreadPoolExecutor(properties.getPreviewThreads(), properties.getPreviewThreads(), 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(properties.getPreviewQueueSize()), new NamedThreadFactory("media-preview"));
+
+        dropped = metrics.counter("eoss_media_previews_dropped_total");
+        failed = metrics.counter("eoss_media_preview_failures_total");
+        savedBytes = metrics.counter("eoss_media_preview_saved_bytes_total");
+        latency = metrics.histogram("eoss_media_preview_milliseconds");
+        metrics.gauge("eoss_media_previews_queued", () -> executor.getQueue().size());
+        metrics.gauge("eoss_media_previews_cached", previews::estimatedSize);
+
+        sharedState.subscribe(CHANNEL, this::received);
+
+        if (properties.isPreviews() && !properties.getFfmpeg().isEmpty()) {
+            executor.execute(() -> ffmpeg = probe(properties.getFfmpeg()));
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return the preview of the media stored under <code>url</code>, or null while there is none
+     */
+    public String previewOf(String url) {
+        String preview = previews.getIfPresent(url);
+        if (preview == null) {
+            preview = readFromDisk(url);
+            if (preview != null) previews.put(url, preview);
+        }
+        return preview;
+    }
+
+    /**
+     * Called with the URL of the original whenever its preview becomes available.
+     */
+    public void onPreview(Consumer<String> listener) {
+        listeners.add(listener);
+    }
+
+    public boolean isEnabled(Kind kind) {
+        return eossBotProperties.getMedia().isPreviews() && (kind == Kind.IMAGE || ffmpeg);
+    }
+
+    /**
+     * Queues a preview of the content in <code>source</code>, which is deleted once done with.
+     *
+     * @param name name of the stored original, the preview is stored next to it
+     */
+    public void submit(Kind kind, String url, String name, Path source) {
+
+        if (!isEnabled(kind) || previewOf(url) != null) {
+            delete(source);
+            return;
+        }
+
+        try {
+            executor.execute(() -> generate(kind, url, name, source));
+        } catch (RejectedExecutionException e) {
+            dropped.increment();
+            delete(source);
+        }
+    }
+
+    private void generate(Kind kind, String url, String name, Path source) {
+
+        long start = System.currentTimeMillis();
+        Path frame = null;
+
+        try {
+            if (kind == Kind.VIDEO) {
+                frame = firstFrame(source);
+                if (frame == null) return;
+            }
+
+            byte[] jpeg = encode(scale(decode(frame != null ? frame : source)));
+            if (jpeg == null) return;
+
+            String previewName = name + ".preview.jpg";
+            storage.write(previewName, new ByteArrayInputStream(jpeg));
+            savedBytes.add(Math.max(0, Files.size(source) - jpeg.length));
+            metrics.counter("eoss_media_previews_total{kind=\"" + kind.name().toLowerCase() + "\"}").increment();
+            latency.record(System.currentTimeMillis() - start);
+
+            String message = url + '\t' + storage.getURL(previewName);
+            received(message);
+            sharedState.publish(CHANNEL, message);
+
+        } catch (IOException | RuntimeException e) {
+            failed.increment();
+            e.printStackTrace();
+        } finally {
+            delete(source);
+            if (frame != null) delete(frame);
+        }
+    }
+
+    private void received(String message) {
+        int tab = message.indexOf('\t');
+        if (tab == -1) return;
+        String url = message.substring(0, tab);
+        String preview = message.substring(tab + 1);
+        writeToDisk(url, preview);
+        previews.put(url, preview);
+        for (Consumer<String> listener : listeners) {
+            listener.accept(url);
+        }
+    }
+
+    private String readFromDisk(String url) {
+        Path file = file(url);
+        if (!Files.exists(file)) return null;
+        try {
+            return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private void writeToDisk(String url, String preview) {
+        Path file = file(url);
+        try {
+            Files.createDirectories(file.getParent());
+            Path temp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+            Files.write(temp, preview.getBytes(StandardCharsets.UTF_8));
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * The file of an original's preview, named by the hash of its URL.
+     */
+    private Path file(String url) {
+        try {
+            String hash = MediaIngestor.toHex(MessageDigest.getInstance("SHA-256").digest(url.getBytes(StandardCharsets.UTF_8)));
+            return directory.resolve(hash.substring(0, 2)).resolve(hash);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Decodes only every n-th pixel of images much larger than the preview, so a large photo never
+     * has to be held in memory at full size.
+     */
+    private BufferedImage decode(Path source) throws IOException {
+
+        try (ImageInputStream in = ImageIO.createImageInputStream(source.toFile())) {
+
+            Iterator<ImageReader> readers = in == null ? null : ImageIO.getImageReaders(in);
+            if (readers == null || !readers.hasNext()) {
+                failed.increment();
+                return null;
+            }
+
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                int step = Math.max(1, Math.max(reader.getWidth(0), reader.getHeight(0))
+                        / (2 * eossBotProperties.getMedia().getPreviewPixels()));
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(step, step, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private BufferedImage scale(BufferedImage image) {
+
+        if (image == null) return null;
+
+        int pixels = eossBotProperties.getMedia().getPreviewPixels();
+        double ratio = Math.min(1, (double) pixels / Math.max(image.getWidth(), image.getHeight()));
+        int width = Math.max(1, (int) Math.round(image.getWidth() * ratio));
+        int height = Math.max(1, (int) Math.round(image.getHeight() * ratio));
+
+        BufferedImage preview = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = preview.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.setColor(Color.WHITE);
+            graphics.fillRect(0, 0, width, height);
+            graphics.drawImage(image, 0, 0, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+        return preview;
+    }
+
+    private byte[] encode(BufferedImage image) throws IOException {
+
+        if (image == null) return null;
+
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 * 1024);
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(bytes)) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(eossBotProperties.getMedia().getPreviewQuality());
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return a PNG of the video's first frame, or null when ffmpeg could not make one in time
+     */
+    private Path firstFrame(Path video) throws IOException {
+
+        EOSSBotProperties.Media properties = eossBotProperties.getMedia();
+        Path frame = Files.createTempFile(Paths.get(properties.getSpoolDirectory()), "frame-", ".png");
+        Path log = frame.resolveSibling(frame.getFileName() + ".log");
+
+        try {
+            Process process = new ProcessBuilder(properties.getFfmpeg(), "-v", "error", "-y",
+                    "-i", video.toString(), "-frames:v", "1", frame.toString())
+                    .redirectErrorStream(true)
+                    .redirectOutput(log.toFile())
+                    .start();
+
+            if (!process.waitFor(properties.getFfmpegTimeoutSeconds(), TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+                failed.increment();
+            } else if (process.exitValue() == 0 && Files.size(frame) > 0) {
+                return frame;
+            } else {
+                failed.increment();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            delete(log);
+        }
+
+        delete(frame);
+        return null;
+    }
+
+    /**
+     * Runs <code>ffmpeg -version</code> with its output going to a file, so it never blocks on or fails writing a closed pipe.
+     */
+    private boolean probe(String ffmpeg) {
+        Path log = null;
+        try {
+            log = Files.createTempFile(Paths.get(eossBotProperties.getMedia().getSpoolDirectory()), "ffmpeg-", ".log");
+            Process process = new ProcessBuilder(ffmpeg, "-version")
+                    .redirectErrorStream(true)
+                    .redirectOutput(log.toFile())
+                    .start();
+            if (!process.waitFor(10, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+                return false;
+            }
+            return process.exitValue() == 0;
+        } catch (IOException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            if (log != null) delete(log);
+        }
+    }
+
+    private static void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+}
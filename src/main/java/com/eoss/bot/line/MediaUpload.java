@@ -0,0 +1,55 @@
+package com.eoss.bot.line;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A media message being copied from LINE to {@link Storage}.
+ * <p>
+ * Its URL is settled once: either by the uploader when it knows where the content lives, or by
+ * a caller that stopped waiting and took the placeholder, which the uploader then has to honour.
+ */
+public class MediaUpload {
+
+    public final String placeholderUrl;
+
+    public final CompletableFuture<String> uploaded = new CompletableFuture<>();
+
+    private final AtomicReference<String> url = new AtomicReference<>();
+
+    public MediaUpload(String placeholderUrl) {
+        this.placeholderUrl = placeholderUrl;
+    }
+
+    /**
+     * Offers the URL the uploader would like to use.
+     *
+     * @return the URL the content must end up under
+     */
+    String settle(String contentUrl) {
+        url.compareAndSet(null, contentUrl);
+        return url.get();
+    }
+
+    /**
+     * Waits at most <code>millis</code> for the upload and falls back to the settled or placeholder URL.
+     *
+     * @throws ExecutionException when the upload already failed within the deadline
+     */
+    public String await(long millis) throws InterruptedException, ExecutionException {
+
+        if (millis > 0 || uploaded.isDone()) {
+            try {
+                return uploaded.get(millis, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                // fall through to the placeholder
+            }
+        }
+
+        return settle(placeholderUrl);
+    }
+
+}
@@ -0,0 +1,305 @@
+package com.eoss.bot.line;
+
+import com.eoss.brain.MessageTemplate;
+import com.eoss.util.GAEWebStream;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.linecorp.bot.model.action.Action;
+import com.linecorp.bot.model.action.MessageAction;
+import com.linecorp.bot.model.action.URIAction;
+import com.linecorp.bot.model.message.*;
+import com.linecorp.bot.model.message.imagemap.ImagemapArea;
+import com.linecorp.bot.model.message.imagemap.ImagemapBaseSize;
+import com.linecorp.bot.model.message.imagemap.URIImagemapAction;
+import com.linecorp.bot.model.message.template.ButtonsTemplate;
+import com.linecorp.bot.model.message.template.ConfirmTemplate;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Turns a brain response into a LINE {@link Message}.
+ * <p>
+ * LINE messages are immutable, so a response is compiled once and the message reused for every
+ * later reply with the same text. Compiling dispatches on the response prefix in a single lookup
+ * by first character instead of a chain of <code>startsWith</code> and <code>replace</code> calls.
+ * Images and videos are shown with their {@link MediaPreviews} preview once there is one.
+ */
+@Component
+public class MessageRenderer {
+
+    private static final String HTTPS = "https://";
+
+    private static final String HTTP = "http://";
+
+    private enum Kind { STICKER, IMAGE, IMAGEMAP, AUDIO, VIDEO, MODE, WEB }
+
+    private static final Prefix[][] PREFIXES = new Prefix[128][];
+
+    private static final Prefix[] NON_ASCII_PREFIXES;
+
+    static {
+        List<Prefix> prefixes = Arrays.asList(
+                new Prefix(MessageTemplate.STICKER, Kind.STICKER),
+                new Prefix(MessageTemplate.IMAGE, Kind.IMAGE),
+                new Prefix(MessageTemplate.IMAGEMAP, Kind.IMAGEMAP),
+                new Prefix(MessageTemplate.AUDIO, Kind.AUDIO),
+                new Prefix(MessageTemplate.VIDEO, Kind.VIDEO),
+                new Prefix(MessageTemplate.MODE, Kind.MODE),
+                new Prefix(HTTPS, Kind.WEB));
+
+        List<Prefix> nonAscii = new ArrayList<>();
+        for (Prefix prefix : prefixes) {
+            char first = prefix.value.charAt(0);
+            if (first >= PREFIXES.length) {
+                nonAscii.add(prefix);
+                continue;
+            }
+            Prefix[] candidates = PREFIXES[first] == null ? new Prefix[0] : PREFIXES[first];
+            candidates = Arrays.copyOf(candidates, candidates.length + 1);
+            candidates[candidates.length - 1] = prefix;
+            PREFIXES[first] = candidates;
+        }
+        NON_ASCII_PREFIXES = nonAscii.toArray(new Prefix[0]);
+    }
+
+    @Autowired
+    private EOSSBotProperties eossBotProperties;
+
+    @Autowired
+    private Metrics metrics;
+
+    @Autowired
+    private MediaPreviews mediaPreviews;
+
+    private Cache<String, Message> cache;
+
+    @PostConstruct
+    public void init() {
+
+        cache = Caffeine.newBuilder()
+                .maximumSize(eossBotProperties.getRenderer().getCacheSize())
+                .recordStats()
+                .build();
+
+        metrics.gauge("eoss_renderer_cache_size", cache::estimatedSize);
+        metrics.gauge("eoss_renderer_cache_hits", () -> cache.stats().hitCount());
+        metrics.gauge("eoss_renderer_cache_misses", () -> cache.stats().missCount());
+
+        mediaPreviews.onPreview(url -> {
+            cache.invalidate(MessageTemplate.IMAGE + url);
+            cache.invalidate(MessageTemplate.VIDEO + url);
+        });
+    }
+
+    public Message render(String text) {
+        return cache.get(text, key -> compile(key, mediaPreviews::previewOf));
+    }
+
+    static Message compile(String text) {
+        return compile(text, url -> null);
+    }
+
+    /**
+     * @param previewOf the preview of a stored image or video, or null when it has none
+     */
+    static Message compile(String text, Function<String, String> previewOf) {
+
+        if (!text.isEmpty()) {
+
+            char first = text.charAt(0);
+            Prefix[] candidates = first < PREFIXES.length ? PREFIXES[first] : NON_ASCII_PREFIXES;
+
+            if (candidates != null) {
+                for (Prefix prefix : candidates) {
+                    if (!text.startsWith(prefix.value)) continue;
+                    Message message = compile(prefix.kind, text, text.substring(prefix.value.length()), previewOf);
+                    if (message != null) return message;
+                    break;
+                }
+            }
+        }
+
+        return new TextMessage(text);
+    }
+
+    private static Message compile(Kind kind, String text, String payload, Function<String, String> previewOf) {
+
+        switch (kind) {
+
+            case STICKER:
+                return sticker(payload);
+
+            case IMAGE:
+                String imagePreview = previewOf.apply(payload);
+                return new ImageMessage(payload, imagePreview != null ? imagePreview : payload);
+
+            case IMAGEMAP:
+                return new ImagemapMessage(payload,
+                        "Download Here!",
+                        new ImagemapBaseSize(1040, 1040),
+                        Collections.singletonList(
+                                new URIImagemapAction(
+                                        payload,
+                                        new ImagemapArea(
+                                                0, 0, 520, 520
+                                        )
+                                )));
+
+            case AUDIO:
+                return new AudioMessage(payload, 60 * 1000);
+
+            case VIDEO:
+                String videoPreview = previewOf.apply(payload);
+                return new VideoMessage(payload, videoPreview != null ? videoPreview : GAEWebStream.URL_STORAGE_BIN + "preview.png");
+
+            case MODE:
+                return new TemplateMessage(
+                        "โหมด",
+                        new ConfirmTemplate("ต้องการเข้าสู่โหมด " + payload + " หรือไม่?",
+                                new MessageAction("Yes", MessageTemplate.MODE_HOOK + payload),
+                                new MessageAction("No", "ไม่")));
+
+            default:
+                return web(text);
+        }
+    }
+
+    private static Message sticker(String payload) {
+
+        String ids = payload.replace("?", "");
+        int separator = ids.indexOf(':');
+        try {
+            int packageId = Integer.parseInt(ids.substring(0, separator));
+            int stickerId = Integer.parseInt(ids.substring(separator + 1));
+            return new StickerMessage(Integer.toString(packageId), Integer.toString(stickerId));
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * <code>https://url [detail[\nmenu...]]</code>: an image with a menu of buttons, or a link to confirm.
+     */
+    private static Message web(String text) {
+
+        int space = text.indexOf(' ');
+        String url = (space == -1 ? text : text.substring(0, space)).trim();
+        boolean isImageURL = endsWithIgnoreCase(url, "jpg") || endsWithIgnoreCase(url, "jpeg") || endsWithIgnoreCase(url, "png");
+
+        if (space == -1) {
+
+            if (isImageURL) {
+                return new ImageMessage(url, url);
+            }
+
+            return confirmWebsite(url.replace(HTTPS, "").replace("www.", ""), url);
+        }
+
+        String detail = text.substring(space + 1);
+
+        if (!isImageURL) {
+            return confirmWebsite(detail, url);
+        }
+
+        String[] menus = detail.split("\n", 5);
+        detail = truncate(menus[0], 60);
+
+        String hostName = host(url);
+        List<Action> actionList = new ArrayList<>(menus.length);
+
+        for (int i = 1; i < menus.length; i++) {
+
+            String menuItem = menus[i].trim();
+            if (menuItem.isEmpty()) continue;
+
+            boolean isURL = menuItem.startsWith(HTTP) || menuItem.startsWith(HTTPS);
+            if (isURL) {
+                menuItem = menuItem.substring(menuItem.indexOf("://") + 3);
+            }
+
+            int separator = menuItem.indexOf(':');
+            String message = (separator == -1 ? menuItem : menuItem.substring(0, separator)).trim();
+            String label = separator == -1 ? message : menuItem.substring(separator + 1).trim();
+
+            label = truncate(label, 20);
+            if (message.length() > 300)
+                message = message.substring(0, 300);
+
+            if (isURL) {
+                actionList.add(new URIAction(label, HTTPS + message));
+                hostName = host(HTTPS + message);
+            } else {
+                actionList.add(new MessageAction(label, message));
+            }
+        }
+
+        if (actionList.isEmpty()) {
+            actionList.add(new MessageAction("ถัดไป", "ยังไง"));
+        }
+
+        return new TemplateMessage(
+                "โปรดเลือก",
+                new ButtonsTemplate(
+                        url,
+                        hostName,
+                        detail, actionList));
+    }
+
+    private static Message confirmWebsite(String detail, String url) {
+        return new TemplateMessage(
+                "เวปไซท์",
+                new ConfirmTemplate(truncate(detail, 240),
+                        new URIAction("เข้าเวป", url),
+                        new MessageAction("ขอบคุณ", "ขอบคุณ")));
+    }
+
+    private static String truncate(String text, int length) {
+        return text.length() > length ? text.substring(0, length - 3) + "..." : text;
+    }
+
+    private static boolean endsWithIgnoreCase(String text, String suffix) {
+        return text.regionMatches(true, text.length() - suffix.length(), suffix, 0, suffix.length());
+    }
+
+    /**
+     * The host of an absolute URL, or the URL itself when it has none.
+     */
+    static String host(String url) {
+
+        int start = url.indexOf("://");
+        if (start == -1) return url;
+        start += 3;
+
+        int end = start;
+        while (end < url.length() && "/?#".indexOf(url.charAt(end)) == -1) end++;
+
+        int userInfo = url.lastIndexOf('@', end - 1);
+        if (userInfo >= start) start = userInfo + 1;
+
+        int port = url.indexOf(':', start);
+        if (port != -1 && port < end) end = port;
+
+        return end > start ? url.substring(start, end) : url;
+    }
+
+    private static class Prefix {
+
+        final String value;
+
+        final Kind kind;
+
+        Prefix(String value, Kind kind) {
+            this.value = value;
+            this.kind = kind;
+        }
+    }
+
+}
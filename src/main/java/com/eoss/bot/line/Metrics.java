@@ -0,0 +1,164 @@
+package com.eoss.bot.line;
+
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Process wide counters and gauges, named the Prometheus way (<code>eoss_..._total</code>).
+ */
+@Component
+public class Metrics {
+
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+
+    private final Map<String, Supplier<? extends Number>> gauges = new ConcurrentHashMap<>();
+
+    private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+    /**
+     * Labels every exported sample when the registry belongs to a tenant.
+     */
+    private final String tenant;
+
+    public Metrics() {
+        this(null);
+    }
+
+    public Metrics(String tenant) {
+        this.tenant = tenant;
+    }
+
+    public LongAdder counter(String name) {
+        LongAdder counter = counters.get(name);
+        return counter != null ? counter : counters.computeIfAbsent(name, k -> new LongAdder());
+    }
+
+    public void gauge(String name, Supplier<? extends Number> supplier) {
+        gauges.put(name, supplier);
+    }
+
+    public Histogram histogram(String name) {
+        return histogram(name, Histogram.MILLISECONDS);
+    }
+
+    public Histogram histogram(String name, long[] bounds) {
+        Histogram histogram = histograms.get(name);
+        return histogram != null ? histogram : histograms.computeIfAbsent(name, k -> new Histogram(bounds));
+    }
+
+    public Map<String, Number> snapshot() {
+        Map<String, Number> snapshot = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> entry : counters.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().sum());
+        }
+        for (Map.Entry<String, Supplier<? extends Number>> entry : gauges.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().get());
+        }
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            Histogram histogram = entry.getValue();
+            snapshot.put(suffix(entry.getKey(), "_count"), histogram.count());
+            snapshot.put(suffix(entry.getKey(), "_sum"), histogram.sum());
+            snapshot.put(suffix(entry.getKey(), "_p50"), histogram.percentile(0.5));
+            snapshot.put(suffix(entry.getKey(), "_p99"), histogram.percentile(0.99));
+        }
+        return snapshot;
+    }
+
+    /**
+     * Everything in the Prometheus text exposition format, version 0.0.4.
+     */
+    public String prometheus() {
+        return prometheus(Collections.singletonList(this));
+    }
+
+    /**
+     * Several registries in one exposition, each metric family typed once.
+     */
+    public static String prometheus(Collection<Metrics> registries) {
+        Map<String, Family> families = new TreeMap<>();
+        for (Metrics metrics : registries) {
+            metrics.collect(families);
+        }
+        StringBuilder text = new StringBuilder(4096);
+        for (Map.Entry<String, Family> family : families.entrySet()) {
+            text.append("# TYPE ").append(family.getKey()).append(' ').append(family.getValue().type).append('\n');
+            text.append(family.getValue().samples);
+        }
+        return text.toString();
+    }
+
+    private void collect(Map<String, Family> families) {
+        for (Map.Entry<String, LongAdder> entry : counters.entrySet()) {
+            family(families, entry.getKey(), "counter").sample(labeled(entry.getKey()), entry.getValue().sum());
+        }
+        for (Map.Entry<String, Supplier<? extends Number>> entry : gauges.entrySet()) {
+            Number value = entry.getValue().get();
+            if (value == null) continue;
+            family(families, entry.getKey(), "gauge").sample(labeled(entry.getKey()), value);
+        }
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            String name = entry.getKey();
+            Histogram histogram = entry.getValue();
+            long[] bounds = histogram.bounds();
+            long[] counts = histogram.cumulativeCounts();
+            Family family = family(families, name, "histogram");
+            String bucket = labeled(suffix(name, "_bucket"));
+            for (int i = 0; i < bounds.length; i++) {
+                family.sample(label(bucket, "le", Long.toString(bounds[i])), counts[i]);
+            }
+            family.sample(label(bucket, "le", "+Inf"), counts[bounds.length]);
+            family.sample(labeled(suffix(name, "_sum")), histogram.sum());
+            family.sample(labeled(suffix(name, "_count")), counts[bounds.length]);
+        }
+    }
+
+    private static Family family(Map<String, Family> families, String name, String type) {
+        int labels = name.indexOf('{');
+        return families.computeIfAbsent(labels == -1 ? name : name.substring(0, labels), family -> new Family(type));
+    }
+
+    private String labeled(String name) {
+        return tenant == null ? name : label(name, "tenant", tenant);
+    }
+
+    /**
+     * Adds a <code>label="value"</code> pair to the metric name.
+     */
+    static String label(String name, String label, String value) {
+        String pair = label + "=\"" + value + "\"";
+        if (name.endsWith("}")) return name.substring(0, name.length() - 1) + "," + pair + "}";
+        return name + "{" + pair + "}";
+    }
+
+    /**
+     * Appends to the metric name, keeping any <code>{label="..."}</code> part at the end.
+     */
+    static String suffix(String name, String suffix) {
+        int labels = name.indexOf('{');
+        if (labels == -1) return name + suffix;
+        return name.substring(0, labels) + suffix + name.substring(labels);
+    }
+
+    private static class Family {
+
+        final String type;
+
+        final StringBuilder samples = new StringBuilder();
+
+        Family(String type) {
+            this.type = type;
+        }
+
+        void sample(String name, Number value) {
+            samples.append(name).append(' ').append(value).append('\n');
+        }
+    }
+
+}
@@ -0,0 +1,219 @@
+package com.eoss.bot.line;
+
+import com.linecorp.bot.client.LineMessagingClient;
+import com.linecorp.bot.client.exception.LineServerException;
+import com.linecorp.bot.client.exception.TooManyRequestsException;
+import com.linecorp.bot.model.PushMessage;
+import com.linecorp.bot.model.ReplyMessage;
+import com.linecorp.bot.model.response.BotApiResponse;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Non-blocking front of {@link LineMessagingClient}: limits calls in flight, times them out,
+ * retries 429 and 5xx answers with exponential backoff and records their latency.
+ * <p>
+ * A call holds its slot until LINE's client is done with it, even after it timed out here, and
+ * the calls waiting for a slot are started on the <code>outbound-drain</code> thread rather than
+ * on the thread of the call that finished.
+ */
+@Component
+public class OutboundMessenger {
+
+    @Autowired
+    private EOSSBotProperties eossBotProperties;
+
+    @Autowired
+    private LineMessagingClient lineMessagingClient;
+
+    @Autowired
+    private Metrics metrics;
+
+    private final Queue<Runnable> pending = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private ScheduledExecutorService scheduler;
+
+    private ExecutorService drainer;
+
+    private LongAdder retries;
+
+    private LongAdder timeouts;
+
+    private LongAdder failures;
+
+    @PostConstruct
+    public void init() {
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("outbound-timer"));
+        drainer = Executors.newSingleThreadExecutor(new NamedThreadFactory("outbound-drain"));
+
+        retries = metrics.counter("eoss_line_api_retries_total");
+        timeouts = metrics.counter("eoss_line_api_timeouts_total");
+        failures = metrics.counter("eoss_line_api_failures_total");
+        metrics.gauge("eoss_line_api_in_flight", inFlight::get);
+        metrics.gauge("eoss_line_api_pending", pending::size);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdown();
+        drainer.shutdown();
+    }
+
+    public CompletableFuture<BotApiResponse> reply(ReplyMessage replyMessage) {
+        return call("reply", () -> lineMessagingClient.replyMessage(replyMessage));
+    }
+
+    public CompletableFuture<BotApiResponse> push(PushMessage pushMessage) {
+        return call("push", () -> lineMessagingClient.pushMessage(pushMessage));
+    }
+
+    public <T> CompletableFuture<T> call(String name, Supplier<CompletableFuture<T>> request) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        attempt(name, request, result, 0, eossBotProperties.getOutbound().getMaxRetries());
+        return result;
+    }
+
+    /**
+     * Like {@link #call} without the retries, for calls that are not safe to send twice and whose caller decides.
+     */
+    public <T> CompletableFuture<T> callOnce(String name, Supplier<CompletableFuture<T>> request) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        attempt(name, request, result, 0, 0);
+        return result;
+    }
+
+    private <T> void attempt(String name, Supplier<CompletableFuture<T>> request, CompletableFuture<T> result,
+                             int attempt, int maxRetries) {
+
+        pending.add(() -> {
+
+            long start = System.currentTimeMillis();
+
+            CompletableFuture<T> sent = send(request);
+            sent.whenComplete((value, throwable) -> release());
+
+            withTimeout(name, sent).whenComplete((value, throwable) -> {
+
+                metrics.histogram("eoss_line_api_latency_milliseconds{call=\"" + name + "\"}")
+                        .record(System.currentTimeMillis() - start);
+
+                if (throwable == null) {
+                    result.complete(value);
+                    return;
+                }
+
+                Throwable cause = unwrap(throwable);
+                EOSSBotProperties.Outbound properties = eossBotProperties.getOutbound();
+
+                if (isRetryable(cause) && attempt < maxRetries) {
+                    retries.increment();
+                    long backoff = properties.getBackoffMillis() << attempt;
+                    backoff += ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+                    scheduler.schedule(() -> attempt(name, request, result, attempt + 1, maxRetries), backoff, TimeUnit.MILLISECONDS);
+                    return;
+                }
+
+                failures.increment();
+                result.completeExceptionally(cause);
+            });
+        });
+
+        drain();
+    }
+
+    private static <T> CompletableFuture<T> send(Supplier<CompletableFuture<T>> request) {
+        try {
+            return request.get();
+        } catch (Exception e) {
+            CompletableFuture<T> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    private <T> CompletableFuture<T> withTimeout(String name, CompletableFuture<T> future) {
+
+        CompletableFuture<T> timed = new CompletableFuture<>();
+
+        ScheduledFuture<?> timer = scheduler.schedule(() -> {
+            if (timed.completeExceptionally(new TimeoutException(name + " timed out"))) {
+                timeouts.increment();
+            }
+        }, eossBotProperties.getOutbound().getTimeoutMillis(), TimeUnit.MILLISECONDS);
+
+        future.whenComplete((value, throwable) -> {
+            timer.cancel(false);
+            if (throwable != null) {
+                timed.completeExceptionally(throwable);
+            } else {
+                timed.complete(value);
+            }
+        });
+
+        return timed;
+    }
+
+    private void drain() {
+
+        int limit = eossBotProperties.getOutbound().getMaxConcurrency();
+
+        while (!pending.isEmpty()) {
+
+            int current = inFlight.get();
+            if (current >= limit) return;
+            if (!inFlight.compareAndSet(current, current + 1)) continue;
+
+            Runnable next = pending.poll();
+            if (next == null) {
+                inFlight.decrementAndGet();
+                continue;
+            }
+            next.run();
+        }
+    }
+
+    private void release() {
+        inFlight.decrementAndGet();
+        if (pending.isEmpty()) return;
+        try {
+            drainer.execute(this::drain);
+        } catch (RejectedExecutionException e) {
+            // shutting down
+        }
+    }
+
+    static Throwable unwrap(Throwable throwable) {
+        while ((throwable instanceof CompletionException || throwable instanceof ExecutionException)
+                && throwable.getCause() != null) {
+            throwable = throwable.getCause();
+        }
+        return throwable;
+    }
+
+    static boolean isRetryable(Throwable cause) {
+        return cause instanceof TooManyRequestsException || cause instanceof LineServerException;
+    }
+
+}
@@ -0,0 +1,430 @@
+package com.eoss.bot.line;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.linecorp.bot.client.LineMessagingClient;
+import com.linecorp.bot.client.exception.LineMessagingException;
+import com.linecorp.bot.model.PushMessage;
+import com.linecorp.bot.model.response.BotApiResponse;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Write-ahead log of pushes, so a push survives a LINE outage or a restart.
+ * <p>
+ * Each push is appended to a memory-mapped file before it is sent, and marked done in place once
+ * LINE accepted it or refused it for good. Failures that may pass are retried with backoff for up
+ * to <code>outbox.maxAgeMinutes</code>, and whatever is still pending at startup is sent again, each
+ * recipient's pushes one after the other in the order they were written. The outbox is the only
+ * layer retrying a push, {@link OutboundMessenger} sends each attempt once. A record only counts
+ * once its length, written last, is in place.
+ * Delivery is at least once: a push LINE accepted just before a crash is sent again.
+ */
+@Component
+public class Outbox {
+
+    private static final int MAGIC = 0x454F5342;
+
+    private static final int VERSION = 1;
+
+    private static final int FILE_HEADER = 8;
+
+    /**
+     * Length, state, id and creation time.
+     */
+    private static final int RECORD_HEADER = 4 + 1 + 8 + 8;
+
+    private static final byte PENDING = 1;
+
+    private static final byte DONE = 2;
+
+    private static final ObjectMapper MAPPER = new ObjectMapper()
+            .findAndRegisterModules()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    @Autowired
+    private EOSSBotProperties eossBotProperties;
+
+    @Autowired
+    private OutboundMessenger outboundMessenger;
+
+    @Autowired
+    private LineMessagingClient lineMessagingClient;
+
+    @Autowired
+    private Metrics metrics;
+
+    private final Map<Long, Entry> pending = new ConcurrentHashMap<>();
+
+    /**
+     * The last push replayed to each recipient, until it is done, for later pushes to wait for.
+     */
+    private final Map<String, CompletableFuture<BotApiResponse>> replaying = new ConcurrentHashMap<>();
+
+    /**
+     * Pushes that did not fit in the log, still being retried.
+     */
+    private final AtomicInteger unlogged = new AtomicInteger();
+
+    private ScheduledExecutorService senders;
+
+    private Path file;
+
+    /**
+     * The mapping and everything below are guarded by the instance lock.
+     */
+    private MappedByteBuffer log;
+
+    private int position;
+
+    /**
+     * Bytes of records done, which compaction would free.
+     */
+    private int doneBytes;
+
+    private long nextId;
+
+    private LongAdder appended, delivered, retries, rejected, expired, overflowed, compactions;
+
+    @PostConstruct
+    public void init() throws IOException {
+
+        EOSSBotProperties.Outbox properties = eossBotProperties.getOutbox();
+        if (!properties.isEnabled()) return;
+
+        Path directory = Paths.get(properties.getDirectory());
+        Files.createDirectories(directory);
+        file = directory.resolve(eossBotProperties.getName() + ".outbox");
+
+        appended = metrics.counter("eoss_outbox_appended_total");
+        delivered = metrics.counter("eoss_outbox_delivered_total");
+        retries = metrics.counter("eoss_outbox_retries_total");
+        rejected = metrics.counter("eoss_outbox_rejected_total");
+        expired = metrics.counter("eoss_outbox_expired_total");
+        overflowed = metrics.counter("eoss_outbox_overflowed_total");
+        compactions = metrics.counter("eoss_outbox_compactions_total");
+        metrics.gauge("eoss_outbox_pending", this::pending);
+        metrics.gauge("eoss_outbox_used_bytes", this::usedBytes);
+
+        senders = Executors.newScheduledThreadPool(properties.getSenders(), new NamedThreadFactory("outbox"));
+
+        List<Entry> replay = open();
+        metrics.counter("eoss_outbox_replayed_total").add(replay.size());
+        for (Entry entry : replay) {
+            String to = entry.message.getTo();
+            CompletableFuture<BotApiResponse> previous = replaying.put(to, entry.future);
+            entry.future.whenComplete((response, throwable) -> replaying.remove(to, entry.future));
+            if (previous == null) {
+                attempt(entry);
+            } else {
+                previous.handle((response, throwable) -> null).thenRun(() -> attempt(entry));
+            }
+        }
+    }
+
+    /**
+     * Pushes still pending stay in the log and are sent again on the next start.
+     */
+    @PreDestroy
+    public synchronized void shutdown() {
+        if (senders == null) return;
+        senders.shutdownNow();
+        log.force();
+    }
+
+    /**
+     * Logs the push, then sends it.
+     *
+     * @return completes once LINE accepted the push, or failed for good
+     */
+    public CompletableFuture<BotApiResponse> push(PushMessage pushMessage) {
+        return send(log(pushMessage));
+    }
+
+    /**
+     * Logs the push without sending it yet, for callers that have to keep pushes in order.
+     */
+    public Entry log(PushMessage pushMessage) {
+
+        if (senders == null) return new Entry(-1, -1, 0, System.currentTimeMillis(), pushMessage);
+
+        Entry entry;
+        try {
+            entry = append(pushMessage, MAPPER.writeValueAsBytes(pushMessage));
+        } catch (IOException e) {
+            e.printStackTrace();
+            entry = null;
+        }
+
+        if (entry == null) {
+            overflowed.increment();
+            unlogged.incrementAndGet();
+            entry = new Entry(-1, -1, 0, System.currentTimeMillis(), pushMessage);
+        }
+        return entry;
+    }
+
+    /**
+     * Sends a push returned by {@link #log(PushMessage)}, once.
+     *
+     * @return completes once LINE accepted the push, or failed for good
+     */
+    public CompletableFuture<BotApiResponse> send(Entry entry) {
+
+        if (senders == null) {
+            outboundMessenger.push(entry.message).whenComplete((response, throwable) -> {
+                if (throwable != null) {
+                    entry.future.completeExceptionally(OutboundMessenger.unwrap(throwable));
+                } else {
+                    entry.future.complete(response);
+                }
+            });
+        } else {
+            attempt(entry);
+        }
+        return entry.future;
+    }
+
+    /**
+     * @return completes once the pushes to <code>to</code> replayed at startup are done, for new ones to go after them
+     */
+    public CompletableFuture<BotApiResponse> replaying(String to) {
+        CompletableFuture<BotApiResponse> last = replaying.get(to);
+        return last != null ? last : CompletableFuture.completedFuture(null);
+    }
+
+    public int pending() {
+        return pending.size() + unlogged.get();
+    }
+
+    private void attempt(Entry entry) {
+
+        entry.attempts++;
+        outboundMessenger.callOnce("push", () -> lineMessagingClient.pushMessage(entry.message)).whenComplete((response, throwable) -> {
+
+            if (throwable == null) {
+                done(entry);
+                delivered.increment();
+                entry.future.complete(response);
+                return;
+            }
+
+            Throwable cause = OutboundMessenger.unwrap(throwable);
+            EOSSBotProperties.Outbox properties = eossBotProperties.getOutbox();
+            boolean permanent = cause instanceof LineMessagingException && !OutboundMessenger.isRetryable(cause);
+            boolean tooOld = System.currentTimeMillis() - entry.createdAt > TimeUnit.MINUTES.toMillis(properties.getMaxAgeMinutes());
+
+            if (permanent || tooOld) {
+                done(entry);
+                (permanent ? rejected : expired).increment();
+                entry.future.completeExceptionally(cause);
+                return;
+            }
+
+            retries.increment();
+            long backoff = Math.min(properties.getMaxRetryMillis(), properties.getRetryMillis() << Math.min(entry.attempts - 1, 20));
+            try {
+                senders.schedule(() -> attempt(entry), backoff, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // shutting down, the entry is sent again on the next start
+            }
+        });
+    }
+
+    private synchronized Entry append(PushMessage message, byte[] payload) throws IOException {
+
+        int size = RECORD_HEADER + payload.length;
+        if (position + size + 4 > log.capacity()) {
+            if (position - doneBytes + size + 4 > log.capacity()) return null;
+            compact();
+        }
+
+        Entry entry = new Entry(nextId++, position, size, System.currentTimeMillis(), message);
+
+        log.put(entry.offset + 4, PENDING);
+        log.putLong(entry.offset + 5, entry.id);
+        log.putLong(entry.offset + 13, entry.createdAt);
+        log.position(entry.offset + RECORD_HEADER);
+        log.put(payload);
+        log.putInt(entry.offset + size, 0);
+        log.putInt(entry.offset, payload.length);
+        if (eossBotProperties.getOutbox().isSync()) log.force();
+
+        position = entry.offset + size;
+        pending.put(entry.id, entry);
+        appended.increment();
+        return entry;
+    }
+
+    private synchronized void done(Entry entry) {
+
+        if (entry.offset < 0) {
+            unlogged.decrementAndGet();
+            return;
+        }
+        if (pending.remove(entry.id) == null) return;
+        log.put(entry.offset + 4, DONE);
+        doneBytes += entry.size;
+
+        if (pending.isEmpty()) {
+            log.putInt(FILE_HEADER, 0);
+            position = FILE_HEADER;
+            doneBytes = 0;
+        }
+        if (eossBotProperties.getOutbox().isSync()) log.force();
+    }
+
+    /**
+     * Rewrites the pending records at the start of a new file, which replaces the log.
+     */
+    private void compact() throws IOException {
+
+        List<Entry> entries = new ArrayList<>(pending.values());
+        entries.sort(Comparator.comparingInt(entry -> entry.offset));
+
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        int capacity = log.capacity();
+        MappedByteBuffer compacted;
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            compacted = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+
+        compacted.putInt(0, MAGIC);
+        compacted.putInt(4, VERSION);
+        int offset = FILE_HEADER;
+        for (Entry entry : entries) {
+            ByteBuffer record = log.duplicate();
+            record.position(entry.offset);
+            record.limit(entry.offset + entry.size);
+            compacted.position(offset);
+            compacted.put(record);
+            entry.offset = offset;
+            offset += entry.size;
+        }
+        compacted.putInt(offset, 0);
+        compacted.force();
+
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log = compacted;
+        position = offset;
+        doneBytes = 0;
+        compactions.increment();
+    }
+
+    /**
+     * Maps the log and reads back every record still pending.
+     */
+    private synchronized List<Entry> open() throws IOException {
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long capacity = Math.max(channel.size(), eossBotProperties.getOutbox().getFileBytes());
+            log = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.min(capacity, Integer.MAX_VALUE));
+        }
+
+        List<Entry> entries = new ArrayList<>();
+        position = FILE_HEADER;
+
+        if (log.getInt(0) != MAGIC || log.getInt(4) != VERSION) {
+            log.putInt(0, MAGIC);
+            log.putInt(4, VERSION);
+            log.putInt(FILE_HEADER, 0);
+            return entries;
+        }
+
+        while (position + RECORD_HEADER <= log.capacity()) {
+
+            int length = log.getInt(position);
+            if (length <= 0 || position + RECORD_HEADER + length > log.capacity()) break;
+
+            long id = log.getLong(position + 5);
+            nextId = Math.max(nextId, id + 1);
+
+            if (log.get(position + 4) == PENDING) {
+                byte[] payload = new byte[length];
+                log.position(position + RECORD_HEADER);
+                log.get(payload);
+                try {
+                    Entry entry = new Entry(id, position, RECORD_HEADER + length, log.getLong(position + 13),
+                            MAPPER.readValue(payload, PushMessage.class));
+                    entries.add(entry);
+                    pending.put(id, entry);
+                } catch (IOException e) {
+                    log.put(position + 4, DONE);
+                    rejected.increment();
+                    e.printStackTrace();
+                }
+            }
+            if (log.get(position + 4) == DONE) doneBytes += RECORD_HEADER + length;
+            position += RECORD_HEADER + length;
+        }
+
+        if (entries.isEmpty()) {
+            log.putInt(FILE_HEADER, 0);
+            position = FILE_HEADER;
+            doneBytes = 0;
+        }
+        return entries;
+    }
+
+    private synchronized long usedBytes() {
+        return log == null ? 0 : position;
+    }
+
+    public static class Entry {
+
+        final long id;
+
+        final int size;
+
+        final long createdAt;
+
+        final PushMessage message;
+
+        final CompletableFuture<BotApiResponse> future = new CompletableFuture<>();
+
+        /**
+         * Guarded by the outbox lock, moved by compaction. -1 for a push that did not fit in the log,
+         * which is retried all the same but lost with the process.
+         */
+        int offset;
+
+        /**
+         * Only touched by one send at a time.
+         */
+        int attempts;
+
+        Entry(long id, int offset, int size, long createdAt, PushMessage message) {
+            this.id = id;
+            this.offset = offset;
+            this.size = size;
+            this.createdAt = createdAt;
+            this.message = message;
+        }
+    }
+
+}
@@ -0,0 +1,168 @@
+package com.eoss.bot.line;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.linecorp.bot.client.LineMessagingClient;
+import com.linecorp.bot.model.profile.UserProfileResponse;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded, expiring cache of LINE profiles. Concurrent lookups of a user not yet cached share one
+ * <code>getProfile</code> call, and a display name index answers {@link #getUserId(String)} in O(1).
+ * Profiles fetched by one node are shared with the others through {@link SharedState}.
+ */
+@Component
+public class ProfileCache {
+
+    private static final String CHANNEL = "profiles";
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @Autowired
+    private EOSSBotProperties eossBotProperties;
+
+    @Autowired
+    private LineMessagingClient lineMessagingClient;
+
+    @Autowired
+    private OutboundMessenger outboundMessenger;
+
+    @Autowired
+    private Metrics metrics;
+
+    @Autowired
+    private SharedState sharedState;
+
+    private final Map<String, String> userIdByDisplayName = new ConcurrentHashMap<>();
+
+    private AsyncLoadingCache<String, UserProfileResponse> cache;
+
+    @PostConstruct
+    public void init() {
+
+        EOSSBotProperties.Profiles properties = eossBotProperties.getProfiles();
+
+        cache = Caffeine.newBuilder()
+                .maximumSize(properties.getMaximumSize())
+                .expireAfterWrite(properties.getTtlMinutes(), TimeUnit.MINUTES)
+                .refreshAfterWrite(properties.getRefreshMinutes(), TimeUnit.MINUTES)
+                .recordStats()
+                .removalListener(this::onRemoval)
+                .buildAsync(this::load);
+
+        metrics.gauge("eoss_profiles_size", () -> cache.synchronous().estimatedSize());
+        metrics.gauge("eoss_profiles_hits", () -> cache.synchronous().stats().hitCount());
+        metrics.gauge("eoss_profiles_misses", () -> cache.synchronous().stats().missCount());
+        metrics.gauge("eoss_profiles_loads", () -> cache.synchronous().stats().loadCount());
+
+        sharedState.subscribe(CHANNEL, userId -> cache.synchronous().invalidate(userId));
+    }
+
+    public CompletableFuture<UserProfileResponse> get(String userId) {
+        return cache.get(userId);
+    }
+
+    /**
+     * Loads every profile not cached yet, without waiting for any of them.
+     */
+    public void prefetch(Iterable<String> userIds) {
+        for (String userId : userIds) {
+            if (userId != null) cache.get(userId);
+        }
+    }
+
+    /**
+     * @return the cached profile, never waiting for one to load
+     */
+    public UserProfileResponse getIfPresent(String userId) {
+
+        if (userId == null) return null;
+
+        CompletableFuture<UserProfileResponse> profile = cache.getIfPresent(userId);
+        if (profile == null || !profile.isDone() || profile.isCompletedExceptionally()) return null;
+        return profile.getNow(null);
+    }
+
+    public String getUserId(String displayName) {
+        return displayName == null ? null : userIdByDisplayName.get(displayName);
+    }
+
+    public void put(UserProfileResponse profile) {
+        cache.put(profile.getUserId(), CompletableFuture.completedFuture(profile));
+        index(profile.getUserId(), profile);
+    }
+
+    public Map<String, UserProfileResponse> asMap() {
+        return cache.synchronous().asMap();
+    }
+
+    /**
+     * Takes the profile another node fetched when there is one, otherwise asks LINE and shares the answer.
+     */
+    private CompletableFuture<UserProfileResponse> load(String userId, Executor executor) {
+        return CompletableFuture
+                .supplyAsync(() -> shared(userId), executor)
+                .thenCompose(profile -> profile != null
+                        ? CompletableFuture.completedFuture(profile)
+                        : outboundMessenger
+                                .call("profile", () -> lineMessagingClient.getProfile(userId))
+                                .thenApply(this::share))
+                .whenComplete((profile, throwable) -> {
+                    if (profile != null) index(userId, profile);
+                });
+    }
+
+    private UserProfileResponse shared(String userId) {
+        String json = sharedState.get(sharedKey(userId));
+        if (json == null) return null;
+        try {
+            return MAPPER.readValue(json, UserProfileResponse.class);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private UserProfileResponse share(UserProfileResponse profile) {
+        try {
+            sharedState.put(sharedKey(profile.getUserId()), MAPPER.writeValueAsString(profile),
+                    TimeUnit.MINUTES.toSeconds(eossBotProperties.getProfiles().getRefreshMinutes()));
+            sharedState.publish(CHANNEL, profile.getUserId());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return profile;
+    }
+
+    private static String sharedKey(String userId) {
+        return "profile:" + userId;
+    }
+
+    private void index(String userId, UserProfileResponse profile) {
+        if (profile.getDisplayName() != null) {
+            userIdByDisplayName.put(profile.getDisplayName(), userId);
+        }
+    }
+
+    private void onRemoval(String userId, UserProfileResponse profile, RemovalCause cause) {
+
+        if (userId == null || profile == null || profile.getDisplayName() == null) return;
+
+        UserProfileResponse current = getIfPresent(userId);
+        if (current != null && profile.getDisplayName().equals(current.getDisplayName())) return;
+
+        userIdByDisplayName.remove(profile.getDisplayName(), userId);
+    }
+
+}
@@ -0,0 +1,203 @@
+package com.eoss.bot.line;
+
+import com.linecorp.bot.model.PushMessage;
+import com.linecorp.bot.model.message.Message;
+import com.linecorp.bot.model.response.BotApiResponse;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Coalesces pushes to the same recipient into as few push calls as the API allows,
+ * sending them through the {@link Outbox} strictly one after another so the recipient sees them in order.
+ * A batch is written to the outbox as soon as it is flushed, only its send waits for the one before.
+ */
+@Component
+public class PushBatcher {
+
+    static final int MAX_MESSAGES = 5;
+
+    @Autowired
+    private EOSSBotProperties eossBotProperties;
+
+    @Autowired
+    private Outbox outbox;
+
+    @Autowired
+    private Metrics metrics;
+
+    private final ConcurrentHashMap<String, Batch> batches = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService scheduler;
+
+    private LongAdder messageCount;
+
+    private LongAdder callCount;
+
+    @PostConstruct
+    public void init() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("push-batcher"));
+        messageCount = metrics.counter("eoss_push_batcher_messages_total");
+        callCount = metrics.counter("eoss_push_batcher_calls_total");
+        metrics.gauge("eoss_push_batcher_recipients", batches::size);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        for (String to : batches.keySet()) {
+            flush(to);
+        }
+        scheduler.shutdown();
+    }
+
+    public CompletableFuture<BotApiResponse> push(String to, List<Message> messages) {
+
+        CompletableFuture<BotApiResponse> future = new CompletableFuture<>();
+        messageCount.add(messages.size());
+
+        List<Flushed> flushed = new ArrayList<>(1);
+        batches.compute(to, (key, batch) -> {
+            if (batch == null) {
+                batch = new Batch(key);
+            }
+            batch.add(messages, future, flushed);
+            return batch;
+        });
+        log(flushed);
+
+        return future;
+    }
+
+    private void flush(String to) {
+        List<Flushed> flushed = new ArrayList<>(1);
+        batches.computeIfPresent(to, (key, batch) -> {
+            batch.timer = null;
+            batch.flush(flushed);
+            return batch;
+        });
+        log(flushed);
+    }
+
+    /**
+     * Writes flushed batches to the outbox outside the map's locks, which lets their sends go.
+     */
+    private void log(List<Flushed> flushed) {
+        for (Flushed batch : flushed) {
+            try {
+                batch.logged.complete(outbox.log(batch.pushMessage));
+            } catch (RuntimeException e) {
+                batch.logged.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Only touched inside {@link #batches} compute calls for its key.
+     */
+    private class Batch {
+
+        final String to;
+
+        final List<Message> buffer = new ArrayList<>(MAX_MESSAGES);
+
+        final List<CompletableFuture<BotApiResponse>> waiters = new ArrayList<>();
+
+        /**
+         * Starts behind the pushes to the same recipient the outbox replays after a restart.
+         */
+        CompletableFuture<BotApiResponse> tail;
+
+        ScheduledFuture<?> timer;
+
+        Batch(String to) {
+            this.to = to;
+            this.tail = outbox.replaying(to);
+        }
+
+        void add(List<Message> messages, CompletableFuture<BotApiResponse> future, List<Flushed> flushed) {
+
+            for (Message message : messages) {
+                buffer.add(message);
+                if (buffer.size() == MAX_MESSAGES) {
+                    flush(flushed);
+                }
+            }
+
+            if (buffer.isEmpty()) {
+                tail.whenComplete((response, throwable) -> complete(future, response, throwable));
+                return;
+            }
+
+            waiters.add(future);
+            if (timer == null) {
+                timer = scheduler.schedule(() -> PushBatcher.this.flush(to),
+                        eossBotProperties.getOutbound().getBatchWindowMillis(), TimeUnit.MILLISECONDS);
+            }
+        }
+
+        void flush(List<Flushed> flushed) {
+
+            if (buffer.isEmpty()) return;
+
+            PushMessage pushMessage = new PushMessage(to, new ArrayList<>(buffer));
+            List<CompletableFuture<BotApiResponse>> sent = new ArrayList<>(waiters);
+            buffer.clear();
+            waiters.clear();
+            if (timer != null) {
+                timer.cancel(false);
+                timer = null;
+            }
+
+            callCount.increment();
+
+            CompletableFuture<Outbox.Entry> logged = new CompletableFuture<>();
+            flushed.add(new Flushed(pushMessage, logged));
+
+            CompletableFuture<BotApiResponse> send = tail
+                    .handle((response, throwable) -> null)
+                    .thenCompose(ignored -> logged)
+                    .thenCompose(outbox::send);
+            tail = send;
+
+            send.whenCompleteAsync((response, throwable) -> {
+                for (CompletableFuture<BotApiResponse> waiter : sent) {
+                    complete(waiter, response, throwable);
+                }
+                batches.computeIfPresent(to, (key, batch) ->
+                        batch == this && batch.tail == send && batch.buffer.isEmpty() ? null : batch);
+            }, scheduler);
+        }
+    }
+
+    private static class Flushed {
+
+        final PushMessage pushMessage;
+
+        final CompletableFuture<Outbox.Entry> logged;
+
+        Flushed(PushMessage pushMessage, CompletableFuture<Outbox.Entry> logged) {
+            this.pushMessage = pushMessage;
+            this.logged = logged;
+        }
+    }
+
+    private static void complete(CompletableFuture<BotApiResponse> future, BotApiResponse response, Throwable throwable) {
+        if (throwable != null) {
+            future.completeExceptionally(OutboundMessenger.unwrap(throwable));
+        } else {
+            future.complete(response);
+        }
+    }
+
+}
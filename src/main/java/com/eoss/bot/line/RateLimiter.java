@@ -0,0 +1,256 @@
+package com.eoss.bot.line;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Token bucket limits on incoming messages per sender, per user and overall, and a budget for pushes.
+ * <p>
+ * A message over its limit is dropped, or held until the buckets allow it and then run, or
+ * coalesced so only the latest held message of a sender runs, depending on <code>rateLimit.policy</code>.
+ * A push over the budget is held until its turn comes, never dropped.
+ */
+@Component
+public class RateLimiter {
+
+    public enum Policy { DROP, COALESCE, DELAY }
+
+    public enum Admission { ADMITTED, DEFERRED, DROPPED }
+
+    @Autowired
+    private EOSSBotProperties eossBotProperties;
+
+    @Autowired
+    private Metrics metrics;
+
+    private final Map<String, Runnable> coalesced = new ConcurrentHashMap<>();
+
+    private final AtomicInteger deferred = new AtomicInteger();
+
+    private final AtomicInteger heldPushes = new AtomicInteger();
+
+    private Cache<String, TokenBucket> senderBuckets;
+
+    private Cache<String, TokenBucket> userBuckets;
+
+    private TokenBucket globalBucket;
+
+    private TokenBucket pushBucket;
+
+    private ScheduledExecutorService scheduler;
+
+    private LongAdder senderLimited, userLimited, globalLimited, dropped, delayed, coalescedAway, pushDelayed;
+
+    @PostConstruct
+    public void init() {
+
+        EOSSBotProperties.RateLimit properties = eossBotProperties.getRateLimit();
+
+        senderBuckets = Caffeine.newBuilder()
+                .maximumSize(properties.getMaximumKeys())
+                .expireAfterAccess(10, TimeUnit.MINUTES)
+                .build();
+        userBuckets = Caffeine.newBuilder()
+                .maximumSize(properties.getMaximumKeys())
+                .expireAfterAccess(10, TimeUnit.MINUTES)
+                .build();
+        globalBucket = bucket(properties.getGlobalPerSecond(), properties.getGlobalBurst());
+        pushBucket = bucket(properties.getPushPerSecond(), properties.getPushBurst());
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("rate-limiter"));
+
+        senderLimited = metrics.counter("eoss_rate_limited_total{scope=\"sender\"}");
+        userLimited = metrics.counter("eoss_rate_limited_total{scope=\"user\"}");
+        globalLimited = metrics.counter("eoss_rate_limited_total{scope=\"global\"}");
+        dropped = metrics.counter("eoss_rate_limit_dropped_total");
+        delayed = metrics.counter("eoss_rate_limit_delayed_total");
+        coalescedAway = metrics.counter("eoss_rate_limit_coalesced_total");
+        pushDelayed = metrics.counter("eoss_push_quota_delayed_total");
+        metrics.gauge("eoss_rate_limit_deferred", deferred::get);
+        metrics.gauge("eoss_push_quota_held", heldPushes::get);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Takes a token for the message from every bucket, otherwise applies the policy.
+     *
+     * @param deferredTask run later on the limiter's thread when the answer is {@link Admission#DEFERRED}
+     * @return {@link Admission#ADMITTED} when the caller should handle the message right away
+     */
+    public Admission admit(String senderId, String userId, Runnable deferredTask) {
+
+        EOSSBotProperties.RateLimit properties = eossBotProperties.getRateLimit();
+        if (!properties.isEnabled()) return Admission.ADMITTED;
+
+        long wait = acquire(senderId, userId, true);
+        if (wait == 0) return Admission.ADMITTED;
+
+        long waitMillis = TimeUnit.NANOSECONDS.toMillis(wait) + 1;
+
+        switch (properties.getPolicy()) {
+
+            case DELAY:
+                if (waitMillis > properties.getMaxDelayMillis()) break;
+                delayed.increment();
+                deferred.incrementAndGet();
+                long deadline = System.currentTimeMillis() + properties.getMaxDelayMillis();
+                scheduler.schedule(() -> retry(senderId, userId, deferredTask, deadline), waitMillis, TimeUnit.MILLISECONDS);
+                return Admission.DEFERRED;
+
+            case COALESCE:
+                Runnable previous = coalesced.put(senderId, deferredTask);
+                if (previous != null) {
+                    coalescedAway.increment();
+                } else {
+                    deferred.incrementAndGet();
+                    scheduler.schedule(() -> flush(senderId, userId), waitMillis, TimeUnit.MILLISECONDS);
+                }
+                return Admission.DEFERRED;
+
+            default:
+        }
+
+        dropped.increment();
+        return Admission.DROPPED;
+    }
+
+    /**
+     * Messages and pushes held back and not yet run or dropped. A deferred task counts until it has returned.
+     */
+    public int deferred() {
+        return deferred.get() + heldPushes.get();
+    }
+
+    /**
+     * Charges a push against the push budget, in turn with the pushes before it.
+     *
+     * @return completes when the push may be sent, right away while the budget lasts
+     */
+    public CompletableFuture<Void> pushTurn(int messages) {
+
+        if (!eossBotProperties.getRateLimit().isEnabled() || pushBucket == null) return CompletableFuture.completedFuture(null);
+        long wait = pushBucket.reserve(System.nanoTime(), messages);
+        if (wait == 0) return CompletableFuture.completedFuture(null);
+
+        pushDelayed.increment();
+        heldPushes.incrementAndGet();
+        CompletableFuture<Void> turn = new CompletableFuture<>();
+        scheduler.schedule(() -> {
+            try {
+                turn.complete(null);
+            } finally {
+                heldPushes.decrementAndGet();
+            }
+        }, TimeUnit.NANOSECONDS.toMillis(wait) + 1, TimeUnit.MILLISECONDS);
+        return turn;
+    }
+
+    private void retry(String senderId, String userId, Runnable task, long deadline) {
+
+        long wait = acquire(senderId, userId, false);
+        if (wait == 0) {
+            run(task);
+            deferred.decrementAndGet();
+            return;
+        }
+
+        long waitMillis = TimeUnit.NANOSECONDS.toMillis(wait) + 1;
+        if (System.currentTimeMillis() + waitMillis > deadline) {
+            deferred.decrementAndGet();
+            dropped.increment();
+            return;
+        }
+        scheduler.schedule(() -> retry(senderId, userId, task, deadline), waitMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void flush(String senderId, String userId) {
+
+        long wait = acquire(senderId, userId, false);
+        if (wait > 0) {
+            scheduler.schedule(() -> flush(senderId, userId), TimeUnit.NANOSECONDS.toMillis(wait) + 1, TimeUnit.MILLISECONDS);
+            return;
+        }
+
+        Runnable task = coalesced.remove(senderId);
+        if (task != null) run(task);
+        deferred.decrementAndGet();
+    }
+
+    private static void run(Runnable task) {
+        try {
+            task.run();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Takes a token from every bucket, or from none of them: the tokens already taken are given
+     * back when a later bucket refuses.
+     *
+     * @return 0 when the tokens were taken, otherwise the nanoseconds to wait
+     */
+    private long acquire(String senderId, String userId, boolean count) {
+
+        EOSSBotProperties.RateLimit properties = eossBotProperties.getRateLimit();
+        long now = System.nanoTime();
+
+        TokenBucket sender = senderId == null ? null
+                : senderBuckets.get(senderId, key -> bucket(properties.getSenderPerSecond(), properties.getSenderBurst()));
+        TokenBucket user = userId == null ? null
+                : userBuckets.get(userId, key -> bucket(properties.getUserPerSecond(), properties.getUserBurst()));
+
+        long wait = tryAcquire(sender, now, count ? senderLimited : null);
+        if (wait > 0) return wait;
+
+        wait = tryAcquire(user, now, count ? userLimited : null);
+        if (wait > 0) {
+            refund(sender);
+            return wait;
+        }
+
+        wait = tryAcquire(globalBucket, now, count ? globalLimited : null);
+        if (wait > 0) {
+            refund(sender);
+            refund(user);
+            return wait;
+        }
+        return 0;
+    }
+
+    private static long tryAcquire(TokenBucket bucket, long now, LongAdder limited) {
+        if (bucket == null) return 0;
+        long wait = bucket.tryAcquire(now, 1);
+        if (wait > 0 && limited != null) limited.increment();
+        return wait;
+    }
+
+    private static void refund(TokenBucket bucket) {
+        if (bucket != null) bucket.refund(1);
+    }
+
+    /**
+     * @return null for an unlimited rate
+     */
+    private static TokenBucket bucket(double perSecond, int burst) {
+        return perSecond > 0 ? new TokenBucket(perSecond, burst) : null;
+    }
+
+}
@@ -0,0 +1,42 @@
+package com.eoss.bot.line;
+
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Completes once the bot can give a useful reply, that is once its brain context and admin list are loaded.
+ * Until then it keeps the latest reason loading them failed.
+ */
+@Component
+public class Readiness {
+
+    private final CompletableFuture<Void> ready = new CompletableFuture<>();
+
+    private volatile String failure;
+
+    public void markReady() {
+        ready.complete(null);
+        failure = null;
+    }
+
+    public void markFailed(String phase, Throwable throwable) {
+        if (!isReady()) failure = phase + ": " + throwable;
+    }
+
+    /**
+     * @return why startup has not finished yet, or null when it is ready or nothing failed so far
+     */
+    public String failure() {
+        return failure;
+    }
+
+    public boolean isReady() {
+        return ready.isDone();
+    }
+
+    public CompletableFuture<Void> whenReady() {
+        return ready;
+    }
+
+}
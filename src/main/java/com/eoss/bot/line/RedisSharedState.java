@@ -0,0 +1,196 @@
+package com.eoss.bot.line;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.JedisPubSub;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * {@link SharedState} in Redis, for running the bot on several nodes.
+ * <p>
+ * Every key and channel is prefixed with the bot name. Messages carry the publishing node, so a
+ * node ignores its own. One background thread holds the pattern subscription and reconnects when
+ * it drops. A failed read is counted and answered with null, so the bot falls back to local state.
+ */
+@Component
+@ConditionalOnProperty(prefix = "eoss.bot.shared", name = "backend", havingValue = "redis")
+public class RedisSharedState implements SharedState {
+
+    @Autowired
+    private EOSSBotProperties eossBotProperties;
+
+    @Autowired
+    private Metrics metrics;
+
+    private final String nodeId = ManagementFactory.getRuntimeMXBean().getName();
+
+    private final Map<String, List<Consumer<String>>> listeners = new ConcurrentHashMap<>();
+
+    private final JedisPubSub subscription = new JedisPubSub() {
+        @Override
+        public void onPMessage(String pattern, String channel, String message) {
+            deliver(channel, message);
+        }
+    };
+
+    private volatile boolean running = true;
+
+    private JedisPool pool;
+
+    private String prefix;
+
+    private LongAdder errors;
+
+    private LongAdder received;
+
+    @PostConstruct
+    public void init() {
+
+        EOSSBotProperties.Shared properties = eossBotProperties.getShared();
+
+        prefix = eossBotProperties.getName() + ":";
+
+        JedisPoolConfig config = new JedisPoolConfig();
+        config.setMaxTotal(properties.getMaxConnections());
+        config.setMaxIdle(properties.getMaxConnections());
+
+        String password = properties.getRedisPassword();
+        pool = new JedisPool(config, properties.getRedisHost(), properties.getRedisPort(),
+                (int) properties.getTimeoutMillis(), password == null || password.isEmpty() ? null : password);
+
+        errors = metrics.counter("eoss_shared_state_errors_total");
+        received = metrics.counter("eoss_shared_state_messages_total");
+
+        new NamedThreadFactory("shared-state").newThread(this::listen).start();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        running = false;
+        if (subscription.isSubscribed()) subscription.punsubscribe();
+        pool.close();
+    }
+
+    @Override
+    public String get(String key) {
+        try (Jedis jedis = pool.getResource()) {
+            return jedis.get(prefix + key);
+        } catch (RuntimeException e) {
+            failed(e);
+            return null;
+        }
+    }
+
+    @Override
+    public void put(String key, String value, long ttlSeconds) {
+        try (Jedis jedis = pool.getResource()) {
+            jedis.setex(prefix + key, (int) ttlSeconds, value);
+        } catch (RuntimeException e) {
+            failed(e);
+        }
+    }
+
+    @Override
+    public void remove(String key) {
+        try (Jedis jedis = pool.getResource()) {
+            jedis.del(prefix + key);
+        } catch (RuntimeException e) {
+            failed(e);
+        }
+    }
+
+    @Override
+    public Set<String> members(String set) {
+        try (Jedis jedis = pool.getResource()) {
+            return jedis.smembers(prefix + set);
+        } catch (RuntimeException e) {
+            failed(e);
+            return Collections.emptySet();
+        }
+    }
+
+    @Override
+    public void add(String set, String member) {
+        try (Jedis jedis = pool.getResource()) {
+            jedis.sadd(prefix + set, member);
+        } catch (RuntimeException e) {
+            failed(e);
+        }
+    }
+
+    @Override
+    public void publish(String channel, String message) {
+        try (Jedis jedis = pool.getResource()) {
+            jedis.publish(prefix + channel, nodeId + "\t" + message);
+        } catch (RuntimeException e) {
+            failed(e);
+        }
+    }
+
+    @Override
+    public void subscribe(String channel, Consumer<String> listener) {
+        listeners.computeIfAbsent(channel, key -> new CopyOnWriteArrayList<>()).add(listener);
+    }
+
+    @Override
+    public void unsubscribe(String channel, Consumer<String> listener) {
+        List<Consumer<String>> channelListeners = listeners.get(channel);
+        if (channelListeners != null) {
+            channelListeners.remove(listener);
+        }
+    }
+
+    private void listen() {
+        while (running) {
+            try (Jedis jedis = pool.getResource()) {
+                jedis.psubscribe(subscription, prefix + "*");
+            } catch (RuntimeException e) {
+                if (!running) return;
+                failed(e);
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void deliver(String channel, String message) {
+
+        int separator = message.indexOf('\t');
+        if (separator == -1 || message.substring(0, separator).equals(nodeId)) return;
+
+        received.increment();
+
+        String payload = message.substring(separator + 1);
+        for (Consumer<String> listener : listeners.getOrDefault(channel.substring(prefix.length()), Collections.emptyList())) {
+            try {
+                listener.accept(payload);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void failed(RuntimeException e) {
+        errors.increment();
+        e.printStackTrace();
+    }
+
+}
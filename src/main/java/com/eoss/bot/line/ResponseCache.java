@@ -0,0 +1,260 @@
+package com.eoss.bot.line;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.text.Normalizer;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Answers repeated text from memory instead of <code>Session.parse</code>.
+ * <p>
+ * An answer is only served once parses of the same normalized text in <code>responseCache.confirmations</code>
+ * different sessions gave it, and never again once a parse gave something else. It is only served to a
+ * session in its resting state: one that is new or whose last answer was a confirmed one, and that
+ * had no node event since. Everything cached belongs to a version of the brain context, which is
+ * bumped whenever admins may have taught it something.
+ */
+@Component
+public class ResponseCache {
+
+    private static final String CHANNEL = "responses";
+
+    @Autowired
+    private EOSSBotProperties eossBotProperties;
+
+    @Autowired
+    private Metrics metrics;
+
+    @Autowired
+    private SharedState sharedState;
+
+    private final AtomicLong version = new AtomicLong();
+
+    private Cache<String, Answer> answers;
+
+    private Cache<String, SessionState> sessions;
+
+    private LongAdder hits, misses, conflicts, invalidations, savedMicros;
+
+    @PostConstruct
+    public void init() {
+
+        EOSSBotProperties.ResponseCache properties = eossBotProperties.getResponseCache();
+        if (!properties.isEnabled()) return;
+
+        answers = Caffeine.newBuilder()
+                .maximumSize(properties.getMaximumSize())
+                .build();
+        sessions = Caffeine.newBuilder()
+                .maximumSize(properties.getMaximumSessions())
+                .expireAfterAccess(eossBotProperties.getSessions().getIdleMinutes(), TimeUnit.MINUTES)
+                .build();
+
+        hits = metrics.counter("eoss_response_cache_hits_total");
+        misses = metrics.counter("eoss_response_cache_misses_total");
+        conflicts = metrics.counter("eoss_response_cache_conflicts_total");
+        invalidations = metrics.counter("eoss_response_cache_invalidations_total");
+        savedMicros = metrics.counter("eoss_response_cache_saved_microseconds_total");
+        metrics.gauge("eoss_response_cache_size", () -> answers.estimatedSize());
+        metrics.gauge("eoss_response_cache_version", version::get);
+        metrics.gauge("eoss_response_cache_hit_ratio", () -> {
+            long hit = hits.sum(), total = hit + misses.sum();
+            return total == 0 ? 0d : (double) hit / total;
+        });
+
+        sharedState.subscribe(CHANNEL, message -> clear());
+    }
+
+    /**
+     * Looks up the answer to a text message of a session.
+     *
+     * @return a lookup to answer from, or to hand the parsed answer to; null when the text is not cacheable
+     */
+    public Lookup lookup(String sessionId, String text) {
+
+        if (answers == null || text == null) return null;
+
+        String normalized = normalize(text);
+        if (normalized.isEmpty() || normalized.length() > eossBotProperties.getResponseCache().getMaximumTextLength()) return null;
+
+        SessionState state = sessions.get(sessionId, id -> new SessionState());
+        Lookup lookup = new Lookup(sessionId, state, version.get(), normalized);
+
+        Answer answer = answers.getIfPresent(lookup.key);
+        if (state.settled && answer != null && answer.isConfirmed(eossBotProperties.getResponseCache().getConfirmations())) {
+            hits.increment();
+            savedMicros.add(answer.parseMicros);
+            lookup.response = answer.response;
+        } else {
+            misses.increment();
+        }
+        return lookup;
+    }
+
+    /**
+     * A node event fired for the session, so its next answers may depend on what it was asked before.
+     */
+    public void unsettle(String sessionId) {
+        if (sessions == null || sessionId == null) return;
+        SessionState state = sessions.getIfPresent(sessionId);
+        if (state == null) return;
+        state.settled = false;
+        state.events.incrementAndGet();
+    }
+
+    /**
+     * The brain context may have learned something, forget every answer on every node.
+     */
+    public void invalidate() {
+        if (answers == null) return;
+        clear();
+        sharedState.publish(CHANNEL, Long.toString(version.get()));
+    }
+
+    private void clear() {
+        version.incrementAndGet();
+        answers.invalidateAll();
+        invalidations.increment();
+    }
+
+    /**
+     * Folds case, width and whitespace, so "สวัสดี ", "สวัสดี" and "ＨＥＬＬＯ" share answers with their plain forms.
+     */
+    static String normalize(String text) {
+        String normalized = Normalizer.normalize(text, Normalizer.Form.NFKC).trim().toLowerCase(Locale.ROOT);
+        StringBuilder builder = new StringBuilder(normalized.length());
+        boolean space = false;
+        for (int i = 0; i < normalized.length(); i++) {
+            char c = normalized.charAt(i);
+            if (Character.isWhitespace(c)) {
+                space = true;
+                continue;
+            }
+            if (space) builder.append(' ');
+            space = false;
+            builder.append(c);
+        }
+        return builder.toString();
+    }
+
+    public class Lookup {
+
+        private final String sessionId;
+
+        private final SessionState state;
+
+        private final long version;
+
+        private final boolean settled;
+
+        private final int events;
+
+        private final String key;
+
+        private String response;
+
+        Lookup(String sessionId, SessionState state, long version, String normalized) {
+            this.sessionId = sessionId;
+            this.state = state;
+            this.version = version;
+            this.settled = state.settled;
+            this.events = state.events.get();
+            this.key = version + "\u0000" + normalized;
+        }
+
+        /**
+         * @return the cached answer, or null when the session has to parse
+         */
+        public String response() {
+            return response;
+        }
+
+        /**
+         * Hands over the answer the session parsed for this lookup.
+         */
+        public void parsed(String response, long parseMicros) {
+
+            if (response == null || version != ResponseCache.this.version.get()) return;
+
+            if (state.events.get() != events) {
+                state.settled = false;
+                return;
+            }
+
+            if (!settled) {
+                Answer answer = answers.getIfPresent(key);
+                state.settled = answer != null
+                        && answer.isConfirmed(eossBotProperties.getResponseCache().getConfirmations())
+                        && answer.response.equals(response);
+                return;
+            }
+
+            int confirmations = eossBotProperties.getResponseCache().getConfirmations();
+            Answer answer = answers.get(key, k -> new Answer(response));
+            if (!answer.agree(sessionId, response, parseMicros, confirmations)) {
+                conflicts.increment();
+                state.settled = false;
+            }
+        }
+    }
+
+    private static class SessionState {
+
+        volatile boolean settled = true;
+
+        final AtomicInteger events = new AtomicInteger();
+
+    }
+
+    private static class Answer {
+
+        final String response;
+
+        /**
+         * The sessions that parsed this answer, kept until there are enough of them to confirm it.
+         */
+        final Set<String> confirmedBy = new HashSet<>();
+
+        int seen;
+
+        boolean conflicting;
+
+        volatile long parseMicros;
+
+        Answer(String response) {
+            this.response = response;
+        }
+
+        synchronized boolean isConfirmed(int confirmations) {
+            return !conflicting && confirmedBy.size() >= confirmations;
+        }
+
+        /**
+         * Counts a parse towards confirming the answer, once per session so one sender repeating
+         * itself cannot confirm it alone.
+         *
+         * @return false when the answer differs from the one seen before, which stops it being served
+         */
+        synchronized boolean agree(String sessionId, String response, long parseMicros, int confirmations) {
+            if (!this.response.equals(response)) {
+                conflicting = true;
+                return false;
+            }
+            if (confirmedBy.size() < confirmations) confirmedBy.add(sessionId);
+            this.parseMicros = seen == 0 ? parseMicros : (this.parseMicros * seen + parseMicros) / (seen + 1);
+            seen++;
+            return true;
+        }
+    }
+
+}
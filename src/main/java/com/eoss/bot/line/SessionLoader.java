@@ -0,0 +1,13 @@
+package com.eoss.bot.line;
+
+import com.eoss.brain.Session;
+
+@FunctionalInterface
+public interface SessionLoader {
+
+    /**
+     * @param spilled the record left by an earlier eviction, or null for a sender never seen before
+     */
+    Session load(String sessionId, SessionRecord spilled);
+
+}
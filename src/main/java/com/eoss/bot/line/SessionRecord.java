@@ -0,0 +1,35 @@
+package com.eoss.bot.line;
+
+/**
+ * What is kept of a {@link com.eoss.brain.Session} once it leaves the heap.
+ */
+public class SessionRecord {
+
+    public final String sessionId;
+
+    public final long createdAt;
+
+    public final long lastAccessAt;
+
+    public SessionRecord(String sessionId, long createdAt, long lastAccessAt) {
+        this.sessionId = sessionId;
+        this.createdAt = createdAt;
+        this.lastAccessAt = lastAccessAt;
+    }
+
+    public String encode() {
+        return sessionId + "\t" + createdAt + "\t" + lastAccessAt;
+    }
+
+    public static SessionRecord decode(String text) {
+        if (text == null) return null;
+        String[] fields = text.trim().split("\t");
+        if (fields.length < 3) return null;
+        try {
+            return new SessionRecord(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+}
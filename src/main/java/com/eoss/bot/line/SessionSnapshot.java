@@ -0,0 +1,280 @@
+package com.eoss.bot.line;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.linecorp.bot.model.profile.UserProfileResponse;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps active sessions and cached profiles across a restart.
+ * <p>
+ * A local binary file holds a full frame followed by delta frames. Each delta has only the
+ * sessions touched and the profiles changed since the frame before it, and the file is rewritten
+ * as one full frame every <code>compactFrames</code> frames. On startup every frame is replayed
+ * into {@link SessionStore} and {@link ProfileCache}, so returning senders are not greeted again.
+ */
+@Component
+public class SessionSnapshot {
+
+    private static final int MAGIC = 0x454F5353;
+
+    private static final int VERSION = 1;
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @Autowired
+    private EOSSBotProperties eossBotProperties;
+
+    @Autowired
+    private SessionStore sessionStore;
+
+    @Autowired
+    private ProfileCache profileCache;
+
+    @Autowired
+    private Metrics metrics;
+
+    /**
+     * Profiles as last written, only touched under the instance lock.
+     */
+    private final Map<String, UserProfileResponse> writtenProfiles = new HashMap<>();
+
+    private List<SessionRecord> restored = Collections.emptyList();
+
+    private ScheduledExecutorService executor;
+
+    private Path file;
+
+    private long snapshotAt;
+
+    /**
+     * Frames in the file, 0 until the first full frame replaces whatever was loaded.
+     */
+    private int frames;
+
+    private LongAdder writtenBytes;
+
+    private Histogram latency;
+
+    @PostConstruct
+    public void init() throws IOException {
+
+        EOSSBotProperties.Snapshot properties = eossBotProperties.getSnapshot();
+        if (!properties.isEnabled()) return;
+
+        Path directory = Paths.get(properties.getDirectory());
+        Files.createDirectories(directory);
+        file = directory.resolve(eossBotProperties.getName() + ".snapshot");
+
+        writtenBytes = metrics.counter("eoss_snapshot_written_bytes_total");
+        latency = metrics.histogram("eoss_snapshot_milliseconds");
+
+        long start = System.currentTimeMillis();
+        load();
+        long loadMillis = System.currentTimeMillis() - start;
+        metrics.gauge("eoss_snapshot_load_milliseconds", () -> loadMillis);
+
+        executor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("snapshot"));
+        executor.scheduleWithFixedDelay(this::snapshot,
+                properties.getIntervalSeconds(), properties.getIntervalSeconds(), TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        if (executor == null) return;
+        executor.execute(this::snapshot);
+        executor.shutdown();
+        executor.awaitTermination(20, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Hands out the most recently active sessions restored at startup, once.
+     */
+    public synchronized List<SessionRecord> recent(int limit) {
+        List<SessionRecord> recent = new ArrayList<>(restored);
+        recent.sort(Comparator.comparingLong((SessionRecord record) -> record.lastAccessAt).reversed());
+        restored = Collections.emptyList();
+        return recent.size() > limit ? recent.subList(0, limit) : recent;
+    }
+
+    synchronized void snapshot() {
+
+        long start = System.currentTimeMillis();
+        try {
+            long bytes = frames == 0 || frames >= eossBotProperties.getSnapshot().getCompactFrames()
+                    ? writeFull(start)
+                    : writeDelta(start);
+            writtenBytes.add(bytes);
+            latency.record(System.currentTimeMillis() - start);
+        } catch (IOException e) {
+            frames = 0;
+            e.printStackTrace();
+        }
+    }
+
+    private long writeFull(long takenAt) throws IOException {
+
+        List<SessionRecord> sessions = new ArrayList<>(sessionStore.records());
+        Map<String, UserProfileResponse> profiles = new HashMap<>(profileCache.asMap());
+
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeFrame(out, takenAt, sessions, profiles.values());
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        writtenProfiles.clear();
+        writtenProfiles.putAll(profiles);
+        snapshotAt = takenAt;
+        frames = 1;
+        return Files.size(file);
+    }
+
+    private long writeDelta(long takenAt) throws IOException {
+
+        List<SessionRecord> sessions = new ArrayList<>();
+        for (SessionRecord record : sessionStore.records()) {
+            if (record.lastAccessAt >= snapshotAt) sessions.add(record);
+        }
+
+        List<UserProfileResponse> profiles = new ArrayList<>();
+        for (Map.Entry<String, UserProfileResponse> entry : profileCache.asMap().entrySet()) {
+            if (!entry.getValue().equals(writtenProfiles.get(entry.getKey()))) profiles.add(entry.getValue());
+        }
+
+        snapshotAt = takenAt;
+        if (sessions.isEmpty() && profiles.isEmpty()) return 0;
+
+        long size = Files.size(file);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(file, StandardOpenOption.APPEND)))) {
+            writeFrame(out, takenAt, sessions, profiles);
+        }
+
+        for (UserProfileResponse profile : profiles) {
+            writtenProfiles.put(profile.getUserId(), profile);
+        }
+        frames++;
+        return Files.size(file) - size;
+    }
+
+    private static void writeFrame(DataOutputStream out, long takenAt,
+                                   Collection<SessionRecord> sessions, Collection<UserProfileResponse> profiles) throws IOException {
+
+        out.writeLong(takenAt);
+
+        out.writeInt(sessions.size());
+        for (SessionRecord record : sessions) {
+            out.writeUTF(record.sessionId);
+            out.writeLong(record.createdAt);
+            out.writeLong(record.lastAccessAt);
+        }
+
+        out.writeInt(profiles.size());
+        for (UserProfileResponse profile : profiles) {
+            writeString(out, profile.getUserId());
+            writeString(out, profile.getDisplayName());
+            writeString(out, profile.getPictureUrl());
+            writeString(out, profile.getStatusMessage());
+        }
+    }
+
+    /**
+     * Replays every complete frame, later frames winning. A frame cut short by a crash is ignored.
+     */
+    private void load() {
+
+        if (!Files.exists(file)) return;
+
+        Map<String, SessionRecord> sessions = new LinkedHashMap<>();
+        Map<String, UserProfileResponse> profiles = new LinkedHashMap<>();
+        int read = 0;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) return;
+
+            while (true) {
+                Map<String, SessionRecord> frameSessions = new HashMap<>();
+                Map<String, UserProfileResponse> frameProfiles = new HashMap<>();
+                try {
+                    in.readLong();
+                    for (int i = in.readInt(); i > 0; i--) {
+                        SessionRecord record = new SessionRecord(in.readUTF(), in.readLong(), in.readLong());
+                        frameSessions.put(record.sessionId, record);
+                    }
+                    for (int i = in.readInt(); i > 0; i--) {
+                        UserProfileResponse profile = profile(readString(in), readString(in), readString(in), readString(in));
+                        if (profile.getUserId() != null) frameProfiles.put(profile.getUserId(), profile);
+                    }
+                } catch (EOFException e) {
+                    break;
+                }
+                sessions.putAll(frameSessions);
+                profiles.putAll(frameProfiles);
+                read++;
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            e.printStackTrace();
+        }
+
+        for (SessionRecord record : sessions.values()) {
+            sessionStore.restore(record);
+        }
+        for (UserProfileResponse profile : profiles.values()) {
+            profileCache.put(profile);
+        }
+
+        restored = new ArrayList<>(sessions.values());
+        metrics.counter("eoss_snapshot_restored_sessions_total").add(sessions.size());
+        metrics.counter("eoss_snapshot_restored_profiles_total").add(profiles.size());
+        metrics.counter("eoss_snapshot_restored_frames_total").add(read);
+    }
+
+    private static UserProfileResponse profile(String userId, String displayName, String pictureUrl, String statusMessage) {
+        Map<String, String> fields = new HashMap<>();
+        fields.put("userId", userId);
+        fields.put("displayName", displayName);
+        fields.put("pictureUrl", pictureUrl);
+        fields.put("statusMessage", statusMessage);
+        return MAPPER.convertValue(fields, UserProfileResponse.class);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) out.writeUTF(value);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+}
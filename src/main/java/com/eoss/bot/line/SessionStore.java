@@ -0,0 +1,25 @@
+package com.eoss.bot.line;
+
+import com.eoss.brain.Session;
+
+import java.util.Collection;
+
+public interface SessionStore {
+
+    Session get(String sessionId, SessionLoader loader);
+
+    void invalidate(String sessionId);
+
+    long size();
+
+    /**
+     * @return a record of every session held, in no particular order
+     */
+    Collection<SessionRecord> records();
+
+    /**
+     * Remembers a session from before a restart, so the sender's next message is loaded as a returning one.
+     */
+    void restore(SessionRecord record);
+
+}
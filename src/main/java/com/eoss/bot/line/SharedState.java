@@ -0,0 +1,37 @@
+package com.eoss.bot.line;
+
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * State every node of the bot sees: expiring values, sets and invalidation messages.
+ * Keys and channels are scoped to the bot by the implementation.
+ */
+public interface SharedState {
+
+    /**
+     * @return the value, or null when there is none or the backend cannot be reached
+     */
+    String get(String key);
+
+    void put(String key, String value, long ttlSeconds);
+
+    void remove(String key);
+
+    Set<String> members(String set);
+
+    void add(String set, String member);
+
+    /**
+     * Sends a message to the listeners of every other node.
+     */
+    void publish(String channel, String message);
+
+    /**
+     * @param listener called with messages other nodes publish, never with this node's own
+     */
+    void subscribe(String channel, Consumer<String> listener);
+
+    void unsubscribe(String channel, Consumer<String> listener);
+
+}
@@ -0,0 +1,46 @@
+package com.eoss.bot.line;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+@RestController
+public class StatusController {
+
+    @Autowired
+    private Metrics metrics;
+
+    @Autowired
+    private Readiness readiness;
+
+    @Autowired
+    private TenantRegistry tenantRegistry;
+
+    @GetMapping("/status")
+    public Map<String, Number> status() {
+        return metrics.snapshot();
+    }
+
+    @GetMapping("/ready")
+    public ResponseEntity<String> ready() {
+        if (readiness.isReady()) return ResponseEntity.ok("ready");
+        String failure = readiness.failure();
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .body(failure == null ? "starting" : "failing, retrying: " + failure);
+    }
+
+    @GetMapping(value = "/prometheus", produces = "text/plain; version=0.0.4; charset=utf-8")
+    public String prometheus() {
+        List<Metrics> registries = new ArrayList<>();
+        registries.add(metrics);
+        registries.addAll(tenantRegistry.metrics());
+        return Metrics.prometheus(registries);
+    }
+
+}
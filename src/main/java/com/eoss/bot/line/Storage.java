@@ -0,0 +1,19 @@
+package com.eoss.bot.line;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Named blob storage the bot writes its logs, session state and media to.
+ */
+public interface Storage {
+
+    String read(String name);
+
+    void write(String name, String text);
+
+    void write(String name, InputStream in) throws IOException;
+
+    String getURL(String name);
+
+}
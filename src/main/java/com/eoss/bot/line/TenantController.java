@@ -0,0 +1,54 @@
+package com.eoss.bot.line;
+
+import com.linecorp.bot.servlet.LineBotCallbackException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.io.IOException;
+
+/**
+ * Webhooks of the bots hosted by {@link TenantRegistry}, chosen by path or by the <code>destination</code> LINE sends.
+ */
+@RestController
+public class TenantController {
+
+    @Autowired
+    private TenantRegistry tenantRegistry;
+
+    @PostMapping("/tenants/{tenant}/callback")
+    public ResponseEntity<String> callback(@PathVariable("tenant") String tenant,
+                                           @RequestHeader(value = "X-Line-Signature", required = false) String signature,
+                                           @RequestBody byte[] body) {
+        if (!tenantRegistry.exists(tenant)) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body("No tenant " + tenant);
+        }
+        try {
+            tenantRegistry.handle(tenant, signature, body);
+            return ResponseEntity.ok("OK");
+        } catch (LineBotCallbackException | IOException e) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(e.getMessage());
+        }
+    }
+
+    @PostMapping("/tenants/callback")
+    public ResponseEntity<String> callback(@RequestHeader(value = "X-Line-Signature", required = false) String signature,
+                                           @RequestBody byte[] body) {
+        String tenant;
+        try {
+            tenant = tenantRegistry.tenantOf(body);
+        } catch (IOException e) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(e.getMessage());
+        }
+        if (tenant == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body("No tenant for this destination");
+        }
+        return callback(tenant, signature, body);
+    }
+
+}
@@ -0,0 +1,414 @@
+package com.eoss.bot.line;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.linecorp.bot.client.LineMessagingClient;
+import com.linecorp.bot.client.LineSignatureValidator;
+import com.linecorp.bot.model.event.CallbackRequest;
+import com.linecorp.bot.model.ReplyMessage;
+import com.linecorp.bot.model.event.Event;
+import com.linecorp.bot.model.event.MessageEvent;
+import com.linecorp.bot.model.message.TextMessage;
+import com.linecorp.bot.servlet.LineBotCallbackException;
+import com.linecorp.bot.servlet.LineBotCallbackRequestParser;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.bind.PropertiesConfigurationFactory;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.core.env.ConfigurableEnvironment;
+import org.springframework.scheduling.annotation.EnableScheduling;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.validation.BindException;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * Hosts the bots configured under <code>eoss.bot.tenants</code> next to the main one.
+ * <p>
+ * A tenant is loaded by its first event into a small application context of its own, with its own
+ * channel, brain context, sessions and journal. The dispatch workers, renderer, media previews and
+ * storage of the application are shared. Loading runs off the webhook thread and events wait for
+ * it; a message still waiting after <code>tenancy.degradedAfterMillis</code> also gets the degraded
+ * reply of <code>startup</code>, and is answered by the bot once it is loaded. When more than
+ * <code>tenancy.maximumLoaded</code> tenants are loaded or the heap is filling up, the least recently
+ * used ones are closed once nothing of theirs is queued.
+ */
+@Component
+public class TenantRegistry {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @Autowired
+    private EOSSBotProperties eossBotProperties;
+
+    @Autowired
+    private ConfigurableEnvironment environment;
+
+    @Autowired
+    private Storage storage;
+
+    @Autowired
+    private EventDispatcher eventDispatcher;
+
+    @Autowired
+    private MessageRenderer messageRenderer;
+
+    @Autowired
+    private MediaPreviews mediaPreviews;
+
+    @Autowired
+    private SharedState sharedState;
+
+    @Autowired
+    private Metrics metrics;
+
+    private final Map<String, Hosted> hosted = new ConcurrentHashMap<>();
+
+    private ExecutorService loader;
+
+    private ScheduledExecutorService timer;
+
+    private LongAdder loads, loadFailures, unloads, degraded;
+
+    @PostConstruct
+    public void init() {
+        loader = Executors.newCachedThreadPool(new NamedThreadFactory("tenant-loader"));
+        timer = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("tenant-timer"));
+        loads = metrics.counter("eoss_tenants_loads_total");
+        loadFailures = metrics.counter("eoss_tenants_load_failures_total");
+        unloads = metrics.counter("eoss_tenants_unloads_total");
+        degraded = metrics.counter("eoss_tenants_degraded_replies_total");
+        metrics.gauge("eoss_tenants_loaded", this::loaded);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        loader.shutdownNow();
+        timer.shutdownNow();
+        long drainUntil = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        for (Hosted tenant : hosted.values()) {
+            tenant.unload(drainUntil);
+        }
+    }
+
+    public boolean exists(String tenantId) {
+        return eossBotProperties.getTenants().containsKey(tenantId);
+    }
+
+    /**
+     * @return the id of the tenant whose bot has the webhook's <code>destination</code>, or null
+     */
+    public String tenantOf(byte[] body) throws IOException {
+        JsonNode destination = MAPPER.readTree(body).get("destination");
+        if (destination == null) return null;
+        for (Map.Entry<String, EOSSBotProperties.Tenant> tenant : eossBotProperties.getTenants().entrySet()) {
+            if (destination.asText().equals(tenant.getValue().getDestination())) return tenant.getKey();
+        }
+        return null;
+    }
+
+    /**
+     * Checks the signature with the tenant's channel secret, then hands every event to the tenant's bot.
+     */
+    public void handle(String tenantId, String signature, byte[] body) throws LineBotCallbackException, IOException {
+
+        Hosted tenant = hosted.computeIfAbsent(tenantId, Hosted::new);
+        CallbackRequest request = tenant.parser.handle(signature, new String(body, StandardCharsets.UTF_8));
+
+        for (Event event : request.getEvents()) {
+            tenant.handle(event);
+        }
+    }
+
+    /**
+     * The metric registries of every loaded tenant, each labelled with its tenant.
+     */
+    public List<Metrics> metrics() {
+        return hosted.values().stream()
+                .map(tenant -> tenant.metrics)
+                .filter(tenantMetrics -> tenantMetrics != null)
+                .collect(Collectors.toList());
+    }
+
+    public long loaded() {
+        return hosted.values().stream().filter(Hosted::isLoaded).count();
+    }
+
+    /**
+     * Closes the least recently used tenants while there are more than <code>tenancy.maximumLoaded</code>
+     * or the heap is above <code>tenancy.heapThreshold</code>; idle tenants are otherwise kept loaded.
+     */
+    @Scheduled(fixedDelay = 30000)
+    public void unloadExcess() {
+
+        EOSSBotProperties.Tenancy properties = eossBotProperties.getTenancy();
+
+        List<Hosted> loaded = new ArrayList<>();
+        for (Hosted tenant : hosted.values()) {
+            if (tenant.isLoaded()) loaded.add(tenant);
+        }
+
+        int excess = loaded.size() - properties.getMaximumLoaded();
+        if (heapUsage() > properties.getHeapThreshold()) {
+            excess = Math.max(excess, Math.max(1, loaded.size() / 4));
+        }
+        if (excess <= 0) return;
+
+        loaded.sort(Comparator.comparingLong(tenant -> tenant.lastUsedAt));
+        long busySince = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(1);
+        for (Hosted tenant : loaded) {
+            if (excess <= 0 || tenant.lastUsedAt > busySince) break;
+            if (tenant.unload(0)) excess--;
+        }
+    }
+
+    private static double heapUsage() {
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        return heap.getMax() > 0 ? (double) heap.getUsed() / heap.getMax() : 0;
+    }
+
+    /**
+     * The main bot's settings, bound again from the environment, with the tenant's identity on top.
+     */
+    private EOSSBotProperties properties(EOSSBotProperties.Tenant tenant, String tenantId) {
+
+        PropertiesConfigurationFactory<EOSSBotProperties> factory = new PropertiesConfigurationFactory<>(new EOSSBotProperties());
+        factory.setPropertySources(environment.getPropertySources());
+        factory.setTargetName("eoss.bot");
+
+        EOSSBotProperties properties;
+        try {
+            factory.bindPropertiesToTarget();
+            properties = factory.getObject();
+        } catch (BindException e) {
+            throw new IllegalStateException("Cannot bind the settings of tenant " + tenantId, e);
+        } catch (Exception e) {
+            throw new IllegalStateException("Cannot create the settings of tenant " + tenantId, e);
+        }
+
+        properties.setName(tenant.getName() != null ? tenant.getName() : tenantId);
+        properties.setDomain(tenant.getDomain());
+        properties.setLineId(tenant.getLineId());
+        return properties;
+    }
+
+    @EnableScheduling
+    static class TenantScheduling {
+    }
+
+    private class Hosted {
+
+        final String tenantId;
+
+        final EOSSBotProperties.Tenant tenant;
+
+        final LineBotCallbackRequestParser parser;
+
+        final LineMessagingClient client;
+
+        volatile long lastUsedAt = System.currentTimeMillis();
+
+        volatile Metrics metrics;
+
+        /**
+         * Events between taking the bot and handing them to it, which {@link Bot#isIdle()} cannot see yet.
+         */
+        private final AtomicInteger entering = new AtomicInteger();
+
+        private AnnotationConfigApplicationContext context;
+
+        private TenantSharedState tenantSharedState;
+
+        private CompletableFuture<Bot> loading;
+
+        private Bot bot;
+
+        Hosted(String tenantId) {
+            this.tenantId = tenantId;
+            this.tenant = eossBotProperties.getTenants().get(tenantId);
+            if (tenant == null) throw new IllegalArgumentException("No tenant " + tenantId);
+            if (tenant.getChannelSecret() == null || tenant.getChannelToken() == null) {
+                throw new IllegalStateException("Tenant " + tenantId + " needs a channel secret and token");
+            }
+            this.parser = new LineBotCallbackRequestParser(
+                    new LineSignatureValidator(tenant.getChannelSecret().getBytes(StandardCharsets.UTF_8)));
+            this.client = LineMessagingClient.builder(tenant.getChannelToken()).build();
+        }
+
+        void handle(Event event) {
+
+            Bot bot;
+            CompletableFuture<Bot> loading;
+            synchronized (this) {
+                lastUsedAt = System.currentTimeMillis();
+                bot = this.bot;
+                if (bot != null) {
+                    entering.incrementAndGet();
+                }
+                loading = bot == null ? load() : null;
+            }
+
+            if (bot != null) {
+                try {
+                    bot.handle(event);
+                } finally {
+                    entering.decrementAndGet();
+                }
+                return;
+            }
+
+            loading.thenRun(() -> handle(event));
+
+            EOSSBotProperties.Startup startup = eossBotProperties.getStartup();
+            if (startup.isDegraded() && event instanceof MessageEvent) {
+                timer.schedule(() -> {
+                    if (!loading.isDone()) degrade((MessageEvent<?>) event, startup.getDegradedReply());
+                }, eossBotProperties.getTenancy().getDegradedAfterMillis(), TimeUnit.MILLISECONDS);
+            }
+        }
+
+        /**
+         * Answers a message still waiting for the load, whose reply token the bot then no longer has and pushes instead.
+         */
+        private void degrade(MessageEvent<?> event, String text) {
+            degraded.increment();
+            client.replyMessage(new ReplyMessage(event.getReplyToken(), new TextMessage(text))).whenComplete((response, throwable) -> {
+                if (throwable != null) throwable.printStackTrace();
+            });
+        }
+
+        synchronized boolean isLoaded() {
+            return bot != null;
+        }
+
+        /**
+         * Starts loading the tenant on the loader unless it already is; a failed load is tried again by the next event.
+         */
+        private CompletableFuture<Bot> load() {
+            if (loading != null) return loading;
+            CompletableFuture<AnnotationConfigApplicationContext> created = new CompletableFuture<>();
+            loading = created.handle(this::loaded);
+            loader.execute(() -> {
+                try {
+                    created.complete(create());
+                } catch (RuntimeException e) {
+                    created.completeExceptionally(e);
+                }
+            });
+            return loading;
+        }
+
+        private AnnotationConfigApplicationContext create() {
+
+            AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+            TenantSharedState tenantSharedState = new TenantSharedState(sharedState, tenantId);
+            try {
+                context.setDisplayName("tenant " + tenantId);
+                context.getBeanFactory().registerSingleton("eossBotProperties", properties(tenant, tenantId));
+                context.getBeanFactory().registerSingleton("lineMessagingClient", client);
+                context.getBeanFactory().registerSingleton("metrics", new Metrics(tenantId));
+                context.getBeanFactory().registerSingleton("sharedState", tenantSharedState);
+                context.getBeanFactory().registerSingleton("storage", storage);
+                context.getBeanFactory().registerSingleton("eventDispatcher", eventDispatcher);
+                context.getBeanFactory().registerSingleton("messageRenderer", messageRenderer);
+                context.getBeanFactory().registerSingleton("mediaPreviews", mediaPreviews);
+                context.register(
+                        TenantScheduling.class,
+                        OutboundMessenger.class,
+                        Outbox.class,
+                        PushBatcher.class,
+                        LocalSessionStore.class,
+                        EventJournal.class,
+                        MediaIndex.class,
+                        MediaIngestor.class,
+                        ProfileCache.class,
+                        SessionSnapshot.class,
+                        Readiness.class,
+                        RateLimiter.class,
+                        ResponseCache.class,
+                        Audience.class,
+                        BrainContextFactory.class,
+                        Bot.class);
+                context.refresh();
+                return context;
+            } catch (RuntimeException e) {
+                context.close();
+                tenantSharedState.close();
+                throw e;
+            }
+        }
+
+        private synchronized Bot loaded(AnnotationConfigApplicationContext created, Throwable throwable) {
+
+            if (throwable != null) {
+                loading = null;
+                loadFailures.increment();
+                throwable.printStackTrace();
+                throw new CompletionException(throwable);
+            }
+
+            context = created;
+            tenantSharedState = created.getBean(TenantSharedState.class);
+            metrics = created.getBean(Metrics.class);
+            bot = created.getBean(Bot.class);
+            loads.increment();
+            return bot;
+        }
+
+        /**
+         * Closes the tenant once none of its events is queued, waiting for that until <code>drainUntil</code>.
+         *
+         * @return false when it is still loading or still had events in flight by then
+         */
+        boolean unload(long drainUntil) {
+
+            AnnotationConfigApplicationContext closing;
+            TenantSharedState closingSharedState;
+            synchronized (this) {
+                while (bot != null && (entering.get() > 0 || !bot.isIdle())) {
+                    long wait = drainUntil - System.currentTimeMillis();
+                    if (wait <= 0) return false;
+                    try {
+                        wait(Math.min(wait, 50));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                }
+                if (bot == null) return false;
+                closing = context;
+                closingSharedState = tenantSharedState;
+                bot = null;
+                metrics = null;
+                context = null;
+                tenantSharedState = null;
+                loading = null;
+            }
+
+            closing.close();
+            closingSharedState.close();
+            unloads.increment();
+            return true;
+        }
+    }
+
+}
@@ -0,0 +1,78 @@
+package com.eoss.bot.line;
+
+import java.util.AbstractMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * A tenant's view of the application's {@link SharedState}, with its keys and channels prefixed by the tenant id.
+ */
+class TenantSharedState implements SharedState {
+
+    private final SharedState sharedState;
+
+    private final String prefix;
+
+    private final List<Map.Entry<String, Consumer<String>>> subscriptions = new CopyOnWriteArrayList<>();
+
+    TenantSharedState(SharedState sharedState, String tenantId) {
+        this.sharedState = sharedState;
+        this.prefix = tenantId + ":";
+    }
+
+    @Override
+    public String get(String key) {
+        return sharedState.get(prefix + key);
+    }
+
+    @Override
+    public void put(String key, String value, long ttlSeconds) {
+        sharedState.put(prefix + key, value, ttlSeconds);
+    }
+
+    @Override
+    public void remove(String key) {
+        sharedState.remove(prefix + key);
+    }
+
+    @Override
+    public Set<String> members(String set) {
+        return sharedState.members(prefix + set);
+    }
+
+    @Override
+    public void add(String set, String member) {
+        sharedState.add(prefix + set, member);
+    }
+
+    @Override
+    public void publish(String channel, String message) {
+        sharedState.publish(prefix + channel, message);
+    }
+
+    @Override
+    public void subscribe(String channel, Consumer<String> listener) {
+        sharedState.subscribe(prefix + channel, listener);
+        subscriptions.add(new AbstractMap.SimpleImmutableEntry<>(channel, listener));
+    }
+
+    @Override
+    public void unsubscribe(String channel, Consumer<String> listener) {
+        sharedState.unsubscribe(prefix + channel, listener);
+        subscriptions.remove(new AbstractMap.SimpleImmutableEntry<>(channel, listener));
+    }
+
+    /**
+     * Drops every subscription of the tenant, once it is unloaded.
+     */
+    void close() {
+        for (Map.Entry<String, Consumer<String>> subscription : subscriptions) {
+            sharedState.unsubscribe(prefix + subscription.getKey(), subscription.getValue());
+        }
+        subscriptions.clear();
+    }
+
+}
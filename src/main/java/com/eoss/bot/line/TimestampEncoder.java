@@ -0,0 +1,60 @@
+package com.eoss.bot.line;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+/**
+ * Writes journal timestamps, <code>yyyy/MMM/dd HH:mm:ss</code> in Thai, into a caller's buffer.
+ * <p>
+ * Immutable apart from the text of the last second formatted, which is swapped as a whole, so one
+ * encoder can be shared by any number of threads. Records within the same second reuse that text
+ * and allocate nothing.
+ */
+public final class TimestampEncoder {
+
+    public static final String PATTERN = "yyyy/MMM/dd HH:mm:ss";
+
+    private final DateTimeFormatter formatter;
+
+    private volatile Second last = new Second(Long.MIN_VALUE, "");
+
+    public TimestampEncoder() {
+        this(ZoneId.systemDefault());
+    }
+
+    public TimestampEncoder(ZoneId zone) {
+        this.formatter = DateTimeFormatter.ofPattern(PATTERN, new Locale("th")).withZone(zone);
+    }
+
+    public StringBuilder appendTo(StringBuilder out, long epochMillis) {
+        return out.append(second(Math.floorDiv(epochMillis, 1000)));
+    }
+
+    public String format(long epochMillis) {
+        return second(Math.floorDiv(epochMillis, 1000));
+    }
+
+    private String second(long epochSecond) {
+        Second second = last;
+        if (second.epochSecond != epochSecond) {
+            second = new Second(epochSecond, formatter.format(Instant.ofEpochSecond(epochSecond)));
+            last = second;
+        }
+        return second.text;
+    }
+
+    private static final class Second {
+
+        final long epochSecond;
+
+        final String text;
+
+        Second(long epochSecond, String text) {
+            this.epochSecond = epochSecond;
+            this.text = text;
+        }
+    }
+
+}
@@ -0,0 +1,74 @@
+package com.eoss.bot.line;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket. Its whole state is the time the bucket will be full again
+ * (the generic cell rate algorithm), updated with one compare-and-set.
+ */
+public class TokenBucket {
+
+    private final long intervalNanos;
+
+    private final long capacityNanos;
+
+    private final int burst;
+
+    private final AtomicLong fullAt;
+
+    public TokenBucket(double perSecond, int burst) {
+        this.intervalNanos = Math.max(1, (long) (1_000_000_000d / perSecond));
+        this.burst = Math.max(1, burst);
+        this.capacityNanos = intervalNanos * this.burst;
+        this.fullAt = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * @return 0 when the tokens would be granted now, otherwise the nanoseconds until they would be
+     */
+    public long peek(long nowNanos, int tokens) {
+        return excess(fullAt.get(), nowNanos, tokens);
+    }
+
+    /**
+     * @return 0 when the tokens were taken, otherwise the nanoseconds until they would be
+     */
+    public long tryAcquire(long nowNanos, int tokens) {
+        while (true) {
+            long full = fullAt.get();
+            long excess = excess(full, nowNanos, tokens);
+            if (excess > 0) return excess;
+            if (fullAt.compareAndSet(full, start(full, nowNanos) + intervalNanos * Math.min(tokens, burst))) return 0;
+        }
+    }
+
+    /**
+     * Takes the tokens even when the bucket is short, so later callers queue up behind this one.
+     *
+     * @return 0 when the tokens were there, otherwise the nanoseconds until the caller may use them
+     */
+    public long reserve(long nowNanos, int tokens) {
+        while (true) {
+            long full = fullAt.get();
+            long excess = excess(full, nowNanos, tokens);
+            if (fullAt.compareAndSet(full, start(full, nowNanos) + intervalNanos * Math.min(tokens, burst))) return excess;
+        }
+    }
+
+    /**
+     * Gives back tokens taken by {@link #tryAcquire} that were not used.
+     */
+    public void refund(int tokens) {
+        fullAt.addAndGet(-intervalNanos * Math.min(tokens, burst));
+    }
+
+    private long excess(long full, long nowNanos, int tokens) {
+        long next = start(full, nowNanos) + intervalNanos * Math.min(tokens, burst);
+        return Math.max(0, next - nowNanos - capacityNanos);
+    }
+
+    private static long start(long full, long nowNanos) {
+        return full - nowNanos > 0 ? full : nowNanos;
+    }
+
+}
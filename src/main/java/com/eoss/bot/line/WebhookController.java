@@ -0,0 +1,45 @@
+package com.eoss.bot.line;
+
+import com.linecorp.bot.servlet.LineBotCallbackException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.io.IOException;
+
+/**
+ * Webhook of the main bot read by {@link WebhookReader}, served once <code>webhook.streaming</code> is on.
+ */
+@RestController
+public class WebhookController {
+
+    @Autowired
+    private EOSSBotProperties eossBotProperties;
+
+    @Autowired
+    private WebhookReader webhookReader;
+
+    @Autowired
+    private Bot bot;
+
+    @PostMapping("/callback/stream")
+    public ResponseEntity<String> callback(@RequestHeader(value = "X-Line-Signature", required = false) String signature,
+                                           @RequestBody byte[] body) {
+        if (!eossBotProperties.getWebhook().isStreaming()) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body("Streaming webhook is off");
+        }
+        try {
+            for (InboundEvent event : webhookReader.read(signature, body)) {
+                bot.handle(event);
+            }
+            return ResponseEntity.ok("OK");
+        } catch (LineBotCallbackException | IOException e) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(e.getMessage());
+        }
+    }
+
+}
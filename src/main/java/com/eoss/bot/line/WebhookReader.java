@@ -0,0 +1,238 @@
+package com.eoss.bot.line;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.linecorp.bot.model.event.Event;
+import com.linecorp.bot.servlet.LineBotCallbackException;
+import com.linecorp.bot.spring.boot.LineBotProperties;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Reads webhook bodies of the main bot for {@link WebhookController} without the LINE event model.
+ * <p>
+ * The signature is checked over the raw bytes with a {@link Mac} kept per thread, and message events
+ * are streamed straight into {@link InboundEvent}s. Any other event is cut out of the body and parsed
+ * into the LINE model as before.
+ */
+@Component
+public class WebhookReader {
+
+    private static final String HMAC = "HmacSHA256";
+
+    private static final JsonFactory JSON = new JsonFactory();
+
+    private static final ObjectMapper MAPPER = new ObjectMapper()
+            .findAndRegisterModules()
+            .configure(DeserializationFeature.READ_DATE_TIMESTAMPS_AS_NANOSECONDS, false)
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    @Autowired
+    private LineBotProperties lineBotProperties;
+
+    @Autowired
+    private Metrics metrics;
+
+    private ThreadLocal<Signer> signers;
+
+    private LongAdder compact, model, rejected;
+
+    @PostConstruct
+    public void init() {
+
+        compact = metrics.counter("eoss_webhook_read_events_total{model=\"compact\"}");
+        model = metrics.counter("eoss_webhook_read_events_total{model=\"line\"}");
+        rejected = metrics.counter("eoss_webhook_signature_rejected_total");
+
+        String channelSecret = lineBotProperties.getChannelSecret();
+        if (channelSecret == null) return;
+
+        SecretKeySpec key = new SecretKeySpec(channelSecret.getBytes(StandardCharsets.UTF_8), HMAC);
+        signers = ThreadLocal.withInitial(() -> new Signer(key));
+    }
+
+    public List<InboundEvent> read(String signature, byte[] body) throws LineBotCallbackException, IOException {
+
+        if (signature == null || signature.isEmpty()) {
+            throw new LineBotCallbackException("Missing 'X-Line-Signature' header");
+        }
+        if (signers == null || !signers.get().verify(signature, body)) {
+            rejected.increment();
+            throw new LineBotCallbackException("Invalid API signature");
+        }
+
+        return parse(body);
+    }
+
+    List<InboundEvent> parse(byte[] body) throws IOException {
+
+        List<InboundEvent> events = new ArrayList<>(1);
+
+        try (JsonParser parser = JSON.createParser(body)) {
+
+            if (parser.nextToken() != JsonToken.START_OBJECT) throw new JsonParseException(parser, "Not a webhook body");
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                if (parser.nextToken() == JsonToken.START_ARRAY && "events".equals(field)) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        events.add(event(parser, body));
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+
+        return events;
+    }
+
+    /**
+     * Reads one event, the parser at its opening brace. Field names come from Jackson's symbol table
+     * and short values like types are matched in place, so only the values kept are new strings.
+     */
+    private InboundEvent event(JsonParser parser, byte[] body) throws IOException {
+
+        int start = (int) parser.getTokenLocation().getByteOffset();
+
+        boolean message = false;
+        String replyToken = null, sourceType = null, userId = null, groupId = null, roomId = null;
+        String messageType = null, messageId = null, text = null, packageId = null, stickerId = null;
+        long timestamp = 0;
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+
+            if ("source".equals(field) && value == JsonToken.START_OBJECT) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String sourceField = parser.getCurrentName();
+                    parser.nextToken();
+                    switch (sourceField) {
+                        case "type": sourceType = is(parser, "group") ? "group" : is(parser, "room") ? "room" : "user"; break;
+                        case "userId": userId = parser.getText(); break;
+                        case "groupId": groupId = parser.getText(); break;
+                        case "roomId": roomId = parser.getText(); break;
+                        default: parser.skipChildren();
+                    }
+                }
+            } else if ("message".equals(field) && value == JsonToken.START_OBJECT) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String messageField = parser.getCurrentName();
+                    parser.nextToken();
+                    switch (messageField) {
+                        case "type": messageType = messageType(parser); break;
+                        case "id": messageId = parser.getText(); break;
+                        case "text": text = parser.getText(); break;
+                        case "packageId": packageId = parser.getText(); break;
+                        case "stickerId": stickerId = parser.getText(); break;
+                        default: parser.skipChildren();
+                    }
+                }
+            } else {
+                switch (field) {
+                    case "type": message = is(parser, "message"); break;
+                    case "replyToken": replyToken = parser.getText(); break;
+                    case "timestamp": timestamp = parser.getValueAsLong(); break;
+                    default: parser.skipChildren();
+                }
+            }
+        }
+
+        if (message && messageType != null) {
+            compact.increment();
+            String senderId = "group".equals(sourceType) ? groupId : "room".equals(sourceType) ? roomId : userId;
+            return new InboundEvent(replyToken, timestamp, userId, senderId, messageType, messageId, text, packageId, stickerId, null);
+        }
+
+        model.increment();
+        int end = (int) parser.getCurrentLocation().getByteOffset();
+        return InboundEvent.of(MAPPER.readValue(body, start, end - start, Event.class));
+    }
+
+    private static String messageType(JsonParser parser) throws IOException {
+        if (is(parser, InboundEvent.TEXT)) return InboundEvent.TEXT;
+        if (is(parser, InboundEvent.STICKER)) return InboundEvent.STICKER;
+        if (is(parser, InboundEvent.IMAGE)) return InboundEvent.IMAGE;
+        if (is(parser, InboundEvent.AUDIO)) return InboundEvent.AUDIO;
+        if (is(parser, InboundEvent.VIDEO)) return InboundEvent.VIDEO;
+        return null;
+    }
+
+    /**
+     * Compares the current string value without making a String of it.
+     */
+    private static boolean is(JsonParser parser, String value) throws IOException {
+
+        if (parser.getCurrentToken() != JsonToken.VALUE_STRING || parser.getTextLength() != value.length()) return false;
+
+        char[] chars = parser.getTextCharacters();
+        int offset = parser.getTextOffset();
+        for (int i = 0; i < value.length(); i++) {
+            if (chars[offset + i] != value.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * The HMAC of one thread, with room for the digest, both reused for every body.
+     */
+    private static class Signer {
+
+        final Mac mac;
+
+        final byte[] digest;
+
+        Signer(SecretKeySpec key) {
+            try {
+                mac = Mac.getInstance(HMAC);
+                mac.init(key);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+            digest = new byte[mac.getMacLength()];
+        }
+
+        boolean verify(String signature, byte[] body) {
+
+            byte[] expected;
+            try {
+                expected = Base64.getDecoder().decode(signature);
+            } catch (IllegalArgumentException e) {
+                return false;
+            }
+            if (expected.length != digest.length) return false;
+
+            try {
+                mac.update(body);
+                mac.doFinal(digest, 0);
+            } catch (ShortBufferException e) {
+                throw new IllegalStateException(e);
+            }
+
+            int difference = 0;
+            for (int i = 0; i < digest.length; i++) {
+                difference |= digest[i] ^ expected[i];
+            }
+            return difference == 0;
+        }
+    }
+
+}